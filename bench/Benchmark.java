@@ -0,0 +1,198 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Performance baseline for parsing, Bayes-Ball and inference, without external dependencies.
+// From the project root:
+//   javac -d out/bench src/*.java bench/*.java
+//   java -cp out/bench Benchmark --networks alarm,grid:6x6,random:40:3 --stages parse,bayesball,ve
+// Networks: alarm, big, grid:RxC, random:N:MAXINDEGREE[:MAXOUTCOMES[:WINDOW]], or the path of an XMLBIF file
+// (hailfinder.xml and the like). Queries are drawn from forward samples with --seed, so their evidence is possible,
+// and carry 0..--evidence observations. The -Dbn.* inference options apply; the query cache is off unless set.
+public class Benchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<>(Map.of(
+                "networks", "alarm,grid:5x5,random:40:3",
+                "stages", "parse,bayesball,ve",
+                "queries", "200",
+                "evidence", "3",
+                "warmup", "2000",
+                "measure", "5000",
+                "seed", "1"));
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--") || !settings.containsKey(args[i].substring(2))) {
+                System.err.println("Unknown option " + args[i] + "; options are --" + String.join(", --", settings.keySet()));
+                return;
+            }
+            settings.put(args[i].substring(2), args[i + 1]);
+        }
+        int queryCount = Integer.parseInt(settings.get("queries"));
+        int maxEvidence = Integer.parseInt(settings.get("evidence"));
+        long warmup = Long.parseLong(settings.get("warmup"));
+        long measure = Long.parseLong(settings.get("measure"));
+        long seed = Long.parseLong(settings.get("seed"));
+        List<String> stages = Arrays.asList(settings.get("stages").split(","));
+
+        InferenceOptions options;
+        try {
+            options = InferenceOptions.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        if (System.getProperty("bn.queryCacheSize") == null) {
+            options.setQueryCacheSize(0);
+        }
+        FactorKernels.setVectorization(options.getVectorization());
+
+        System.out.println("# java " + System.getProperty("java.version") + ", " + Runtime.getRuntime().availableProcessors()
+                + " cpus, engine " + options.getEngine() + ", ordering " + options.getOrdering() + ", "
+                + FactorKernels.describe() + ", " + settings);
+        System.out.println(Measurement.header());
+        for (String spec : settings.get("networks").split(",")) {
+            Path xml = xmlFile(spec, seed);
+            BayesianNetwork network = XMLParser.parseXML(xml.toString());
+            QueryMix mix = new QueryMix(network, queryCount, maxEvidence, seed);
+
+            if (stages.contains("parse")) {
+                System.out.println(Measurement.run("parse", spec, warmup, measure, i -> XMLParser.parseXML(xml.toString())));
+            }
+            if (stages.contains("bayesball")) {
+                BayesBall bayesBall = new BayesBall(network);
+                System.out.println(Measurement.run("bayesball", spec, warmup, measure, i -> {
+                    QueryMix.Independence query = mix.independence(i);
+                    return bayesBall.areIndependents(query.start, query.end, query.evidence);
+                }));
+            }
+            if (stages.contains("ve")) {
+                InferenceEngine engine = InferenceEngine.create(network, options);
+                System.out.println(Measurement.run("ve", spec, warmup, measure, i -> {
+                    QueryMix.Probability query = mix.probability(i);
+                    // The engine prunes the maps and order it is given, so every run gets fresh copies
+                    return engine.query(new HashMap<>(query.query), new HashMap<>(query.evidence), new ArrayList<>(query.hidden));
+                }));
+                if (options.isReportStatistics()) {
+                    engine.reportStatistics(System.out);
+                }
+            }
+        }
+    }
+
+    // XMLBIF file of a network spec; generated networks are written to a temporary file
+    private static Path xmlFile(String spec, long seed) throws Exception {
+        String[] parts = spec.split(":");
+        BayesianNetwork generated;
+        switch (parts[0]) {
+            case "alarm":
+                return Path.of("src/alarm_net.xml");
+            case "big":
+                return Path.of("src/big_net.xml");
+            case "grid": {
+                String[] size = parts[1].split("x");
+                generated = SyntheticNetworks.grid(Integer.parseInt(size[0]), Integer.parseInt(size[1]), seed);
+                break;
+            }
+            case "random":
+                generated = SyntheticNetworks.randomDag(Integer.parseInt(parts[1]), Integer.parseInt(parts[2]),
+                        parts.length > 3 ? Integer.parseInt(parts[3]) : 3, parts.length > 4 ? Integer.parseInt(parts[4]) : 8, seed);
+                break;
+            default:
+                return Path.of(spec);
+        }
+        Path file = Files.createTempFile("bench-" + parts[0], ".xml");
+        file.toFile().deleteOnExit();
+        SyntheticNetworks.writeXml(generated, file);
+        return file;
+    }
+
+    // A fixed, seeded list of queries that the stages cycle through
+    private static final class QueryMix {
+        private final List<Independence> independences = new ArrayList<>();
+        private final List<Probability> probabilities = new ArrayList<>();
+
+        QueryMix(BayesianNetwork network, int count, int maxEvidence, long seed) {
+            Random random = new Random(seed);
+            int n = network.size();
+            for (int q = 0; q < count; q++) {
+                int[] sample = forwardSample(network, random);
+                List<Integer> ids = new ArrayList<>();
+                for (int id = 0; id < n; id++) {
+                    ids.add(id);
+                }
+                Collections.shuffle(ids, random);
+                int evidenceCount = Math.min(n - 2, random.nextInt(maxEvidence + 1));
+
+                Map<String, String> evidence = new HashMap<>();
+                for (int e = 2; e < 2 + evidenceCount; e++) {
+                    BayesianNode node = network.getNode(ids.get(e));
+                    evidence.put(node.getName(), node.getOutcomes().get(sample[ids.get(e)]));
+                }
+                BayesianNode target = network.getNode(ids.get(0));
+                Map<String, String> query = Map.of(target.getName(), target.getOutcomes().get(random.nextInt(target.getOutcomes().size())));
+                List<String> hidden = new ArrayList<>();
+                for (BayesianNode node : network.getNodes()) {
+                    if (!query.containsKey(node.getName()) && !evidence.containsKey(node.getName())) {
+                        hidden.add(node.getName());
+                    }
+                }
+                probabilities.add(new Probability(query, evidence, hidden));
+                independences.add(new Independence(target.getName(), network.getNode(ids.get(1)).getName(), evidence.keySet()));
+            }
+        }
+
+        private static int[] forwardSample(BayesianNetwork network, Random random) {
+            int[] sample = new int[network.size()];
+            for (int id : network.getTopologicalOrder()) {
+                BayesianNode node = network.getNode(id);
+                int row = 0;
+                for (int parent : network.getParents(id)) {
+                    row = row * network.getNode(parent).getOutcomes().size() + sample[parent];
+                }
+                int k = node.getOutcomes().size();
+                double u = random.nextDouble();
+                sample[id] = k - 1;
+                for (int j = 0; j < k; j++) {
+                    u -= node.getProbabilities().get(row * k + j);
+                    if (u < 0) {
+                        sample[id] = j;
+                        break;
+                    }
+                }
+            }
+            return sample;
+        }
+
+        Independence independence(int i) {
+            return independences.get(i % independences.size());
+        }
+
+        Probability probability(int i) {
+            return probabilities.get(i % probabilities.size());
+        }
+
+        static final class Independence {
+            final String start;
+            final String end;
+            final Set<String> evidence;
+
+            Independence(String start, String end, Set<String> evidence) {
+                this.start = start;
+                this.end = end;
+                this.evidence = Set.copyOf(evidence);
+            }
+        }
+
+        static final class Probability {
+            final Map<String, String> query;
+            final Map<String, String> evidence;
+            final List<String> hidden;
+
+            Probability(Map<String, String> query, Map<String, String> evidence, List<String> hidden) {
+                this.query = query;
+                this.evidence = evidence;
+                this.hidden = hidden;
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Regression check of InferenceSession's incremental message updates against fresh calibrations.
+// From the project root:
+//   javac -d out/bench src/*.java bench/*.java
+//   java -cp out/bench InferenceSessionCheck [--sequences 50] [--steps 30] [--seed 1] [network.xml ...]
+// Without files it checks every network in src/. Each sequence adds, replaces, retracts and clears observations at
+// random, reading the posterior of 1..2 unobserved variables after every step; the session's answer must match a
+// JunctionTree calibrated from scratch on the same evidence. A second session gets the same steps from two threads
+// in turn, and must report the same posteriors and the same incremental counts as the one driven from a single
+// thread. The exit status is 1 on any mismatch.
+public class InferenceSessionCheck {
+    private static final double TOLERANCE = 1e-9;
+
+    public static void main(String[] args) throws Exception {
+        int sequences = 50;
+        int steps = 30;
+        long seed = 1;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--sequences") && i + 1 < args.length) {
+                sequences = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--steps") && i + 1 < args.length) {
+                steps = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                files.add(Path.of(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            try (Stream<Path> listing = Files.list(Path.of("src"))) {
+                files = listing.filter(file -> file.toString().endsWith(".xml")).sorted().collect(Collectors.toList());
+            }
+        }
+
+        // One thread each, so consecutive steps of the second session always run on different threads
+        ExecutorService[] workers = {Executors.newSingleThreadExecutor(), Executors.newSingleThreadExecutor()};
+        int failures = 0;
+        for (Path file : files) {
+            BayesianNetwork network = Ex1.loadNetwork(file);
+            double[] joint = PosteriorCheck.joint(network);
+            List<String> names = new ArrayList<>();
+            for (BayesianNode node : network.getNodes()) {
+                names.add(node.getName());
+            }
+
+            Random random = new Random(seed);
+            int checked = 0;
+            double worst = 0;
+            for (int s = 0; s < sequences; s++) {
+                InferenceSession session = new InferenceSession(network);
+                InferenceSession hopping = new InferenceSession(network);
+                Map<String, String> evidence = new HashMap<>();
+                for (int step = 0; step < steps; step++) {
+                    ExecutorService worker = workers[step % 2];
+                    String variable = names.get(random.nextInt(names.size()));
+                    int operation = random.nextInt(20);
+                    String description;
+                    if (operation < 11) {
+                        // Observe (or re-observe) a variable at an outcome that is possible given the other observations
+                        evidence.remove(variable);
+                        int[] sample = sample(network, joint, evidence, random);
+                        int id = network.getId(variable);
+                        String value = network.getNode(id).getOutcomes().get(sample[id]);
+                        session.addEvidence(variable, value);
+                        worker.submit(() -> hopping.addEvidence(variable, value)).get();
+                        evidence.put(variable, value);
+                        description = "add " + variable + "=" + value;
+                    } else if (operation < 19) {
+                        boolean expected = evidence.remove(variable) != null;
+                        worker.submit(() -> hopping.retractEvidence(variable)).get();
+                        if (session.retractEvidence(variable) != expected) {
+                            failures++;
+                            System.out.println("FAIL " + file + ": retract " + variable + " did not return " + expected);
+                        }
+                        description = "retract " + variable;
+                    } else {
+                        session.clearEvidence();
+                        worker.submit(hopping::clearEvidence).get();
+                        evidence.clear();
+                        description = "clear";
+                    }
+                    if (!session.getEvidence().equals(evidence)) {
+                        failures++;
+                        System.out.println("FAIL " + file + ": after " + description + " the session holds "
+                                + session.getEvidence() + ", expected " + evidence);
+                    }
+
+                    List<String> unobserved = new ArrayList<>(names);
+                    unobserved.removeAll(evidence.keySet());
+                    if (unobserved.isEmpty()) {
+                        continue;
+                    }
+                    Collections.shuffle(unobserved, random);
+                    List<String> queryVariables = unobserved.subList(0, 1 + random.nextInt(Math.min(2, unobserved.size())));
+
+                    double error;
+                    double[] actual = null;
+                    double[] expected = null;
+                    try {
+                        Posterior incremental = session.posterior(queryVariables);
+                        Posterior moved = worker.submit(() -> hopping.posterior(queryVariables)).get();
+                        if (moved.getAdditionCount() != incremental.getAdditionCount()
+                                || moved.getMultiplicationCount() != incremental.getMultiplicationCount()
+                                || !Arrays.equals(moved.getProbabilities(), incremental.getProbabilities())) {
+                            failures++;
+                            System.out.println("FAIL " + file + ": after " + description + " on another thread, P("
+                                    + queryVariables + " | " + evidence + ") = " + Arrays.toString(moved.getProbabilities())
+                                    + " with " + moved.getAdditionCount() + "/" + moved.getMultiplicationCount()
+                                    + " additions/multiplications, expected " + Arrays.toString(incremental.getProbabilities())
+                                    + " with " + incremental.getAdditionCount() + "/" + incremental.getMultiplicationCount());
+                        }
+                        Posterior fresh = new JunctionTree(network).posterior(queryVariables, evidence);
+                        actual = incremental.getProbabilities();
+                        expected = fresh.getProbabilities();
+                        error = Math.abs(incremental.getEvidenceProbability() - fresh.getEvidenceProbability());
+                        for (int k = 0; k < expected.length; k++) {
+                            error = Math.max(error, Math.abs(actual[k] - expected[k]));
+                        }
+                    } catch (RuntimeException e) {
+                        failures++;
+                        System.out.println("FAIL " + file + ": after " + description + ", P(" + queryVariables + " | "
+                                + evidence + ") threw " + e);
+                        continue;
+                    }
+                    worst = Math.max(worst, error);
+                    if (!(error <= TOLERANCE)) {
+                        failures++;
+                        System.out.println("FAIL " + file + ": after " + description + ", P(" + queryVariables + " | "
+                                + evidence + ") = " + Arrays.toString(actual) + ", expected " + Arrays.toString(expected));
+                    }
+                    checked++;
+                }
+            }
+            System.out.println(String.format("%s: %d posteriors, %d nodes, largest error %.2e", file, checked,
+                    network.size(), worst));
+        }
+        for (ExecutorService worker : workers) {
+            worker.shutdown();
+        }
+        System.out.println(failures == 0 ? "all session posteriors match" : failures + " mismatches");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // A full assignment drawn from the joint given the evidence, which must be possible
+    private static int[] sample(BayesianNetwork network, double[] joint, Map<String, String> evidence, Random random) {
+        int[] cardinalities = PosteriorCheck.cardinalities(network);
+        double[] conditioned = new double[joint.length];
+        int[] assignment = new int[network.size()];
+        for (int position = 0; position < joint.length; position++) {
+            boolean consistent = true;
+            for (Map.Entry<String, String> entry : evidence.entrySet()) {
+                int id = network.getId(entry.getKey());
+                consistent &= network.getNode(id).getOutcomes().get(assignment[id]).equals(entry.getValue());
+            }
+            conditioned[position] = consistent ? joint[position] : 0;
+            for (int d = assignment.length - 1; d >= 0 && ++assignment[d] == cardinalities[d]; d--) {
+                assignment[d] = 0;
+            }
+        }
+        double total = 0;
+        for (double probability : conditioned) {
+            total += probability;
+        }
+        for (int position = 0; position < conditioned.length; position++) {
+            conditioned[position] /= total;
+        }
+        return PosteriorCheck.sample(network, conditioned, random);
+    }
+}
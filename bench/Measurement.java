@@ -0,0 +1,122 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+
+// Times one benchmark stage: a warm-up phase, then a measured phase recording the latency of every operation,
+// the bytes the thread allocated and the collector activity, in the spirit of JMH's sample mode with -prof gc
+public class Measurement {
+
+    // One benchmark operation; i counts the operations so the caller can cycle through its inputs
+    @FunctionalInterface
+    public interface Operation {
+        Object run(int i) throws Exception;
+    }
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results are folded in here so the JIT cannot drop an operation whose value is never used
+    private static volatile int sink;
+
+    private final String stage;
+    private final String network;
+    private final long operations;
+    private final double seconds;
+    private final long[] latencies;
+    private final long allocatedBytes;
+    private final long gcCount;
+    private final long gcMillis;
+
+    private Measurement(String stage, String network, long operations, double seconds, long[] latencies,
+                        long allocatedBytes, long gcCount, long gcMillis) {
+        this.stage = stage;
+        this.network = network;
+        this.operations = operations;
+        this.seconds = seconds;
+        this.latencies = latencies;
+        this.allocatedBytes = allocatedBytes;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    public static Measurement run(String stage, String network, long warmupMillis, long measureMillis, Operation operation)
+            throws Exception {
+        int i = 0;
+        long warmupEnd = System.nanoTime() + warmupMillis * 1_000_000;
+        while (System.nanoTime() < warmupEnd) {
+            consume(operation.run(i++));
+        }
+
+        long[] latencies = new long[1 << 12];
+        int count = 0;
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+        long allocatedBefore = THREADS.getCurrentThreadAllocatedBytes();
+        long start = System.nanoTime();
+        long end = start + measureMillis * 1_000_000;
+        long now = start;
+        while (now < end) {
+            long before = now;
+            consume(operation.run(i++));
+            now = System.nanoTime();
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = now - before;
+        }
+        long allocated = THREADS.getCurrentThreadAllocatedBytes() - allocatedBefore;
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        return new Measurement(stage, network, count, (now - start) / 1e9, sorted, allocated,
+                gcCount() - gcCountBefore, gcMillis() - gcMillisBefore);
+    }
+
+    private static void consume(Object result) {
+        sink += result == null ? 0 : result.hashCode();
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+
+    // Latency at a quantile, in microseconds
+    public double percentile(double quantile) {
+        if (latencies.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(latencies.length - 1, Math.ceil(quantile * latencies.length) - 1);
+        return latencies[Math.max(0, index)] / 1e3;
+    }
+
+    public double throughput() {
+        return operations / seconds;
+    }
+
+    public double bytesPerOperation() {
+        return operations == 0 ? 0 : (double) allocatedBytes / operations;
+    }
+
+    public static String header() {
+        return String.format("%-10s %-22s %10s %12s %10s %10s %10s %10s %12s %12s %6s %8s",
+                "stage", "network", "ops", "ops/s", "p50 us", "p90 us", "p99 us", "max us", "B/op", "MB/s", "gc", "gc ms");
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-10s %-22s %10d %12.1f %10.2f %10.2f %10.2f %10.2f %12.0f %12.1f %6d %8d",
+                stage, network, operations, throughput(), percentile(0.50), percentile(0.90), percentile(0.99),
+                percentile(1.0), bytesPerOperation(), allocatedBytes / seconds / (1 << 20), gcCount, gcMillis);
+    }
+}
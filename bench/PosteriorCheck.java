@@ -0,0 +1,221 @@
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Regression check of the posterior engines against brute-force enumeration of the joint distribution.
+// From the project root:
+//   javac -d out/bench src/*.java bench/*.java
+//   java -cp out/bench PosteriorCheck [--queries 200] [--seed 1] [network.xml ...]
+// Without files it checks every network in src/. Each query observes 0..3 variables at a possible outcome and asks
+// for the joint of 1..3 others, so several query variables often lie in no single junction-tree clique.
+// Variable elimination, the junction tree and the arithmetic circuit must all agree with the enumeration, both for
+// the posterior and for query() of the first asked variable. query() must also ignore evidence on a name the network
+// does not have, and reject (IllegalStateException, printed as "rejected") a query variable it does not have.
+// The exit status is 1 if any of these fails.
+public class PosteriorCheck {
+    private static final double TOLERANCE = 1e-9;
+    private static final String UNKNOWN = "?";
+
+    public static void main(String[] args) throws Exception {
+        int queries = 200;
+        long seed = 1;
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--queries") && i + 1 < args.length) {
+                queries = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--seed") && i + 1 < args.length) {
+                seed = Long.parseLong(args[++i]);
+            } else {
+                files.add(Path.of(args[i]));
+            }
+        }
+        if (files.isEmpty()) {
+            try (Stream<Path> listing = Files.list(Path.of("src"))) {
+                files = listing.filter(file -> file.toString().endsWith(".xml")).sorted().collect(Collectors.toList());
+            }
+        }
+
+        int failures = 0;
+        for (Path file : files) {
+            BayesianNetwork network = Ex1.loadNetwork(file);
+            Map<String, InferenceEngine> engines = new LinkedHashMap<>();
+            engines.put("ve", VariableElimination.engine(network, new InferenceOptions()));
+            engines.put("jt", new JunctionTree(network));
+            engines.put("ac", new CircuitEngine(network, CircuitCompiler.compile(network)));
+            double[] joint = joint(network);
+
+            Random random = new Random(seed);
+            int checked = 0;
+            double worst = 0;
+            for (int q = 0; q < queries; q++) {
+                // Observe a forward sample, so the evidence is possible
+                int[] sample = sample(network, joint, random);
+                List<String> names = new ArrayList<>();
+                for (BayesianNode node : network.getNodes()) {
+                    names.add(node.getName());
+                }
+                Collections.shuffle(names, random);
+                int observed = Math.min(random.nextInt(4), names.size() - 1);
+                int asked = 1 + random.nextInt(Math.min(3, names.size() - observed));
+                Map<String, String> evidence = new HashMap<>();
+                for (String name : names.subList(0, observed)) {
+                    int id = network.getId(name);
+                    evidence.put(name, network.getNode(id).getOutcomes().get(sample[id]));
+                }
+                List<String> queryVariables = new ArrayList<>(names.subList(observed, observed + asked));
+
+                double[] expected = enumerate(network, joint, queryVariables, evidence);
+
+                // query() answers the input format's single query variable: P(first = outcome | evidence), with the
+                // other asked variables hidden
+                String first = queryVariables.getFirst();
+                List<String> firstDomain = network.getNode(network.getId(first)).getOutcomes();
+                int outcome = random.nextInt(firstDomain.size());
+                double expectedSingle = enumerate(network, joint, List.of(first), evidence)[outcome];
+                Map<String, String> single = Map.of(first, firstDomain.get(outcome));
+                List<String> hidden = new ArrayList<>(names.subList(observed + 1, names.size()));
+
+                for (Map.Entry<String, InferenceEngine> engine : engines.entrySet()) {
+                    double[] actual = null;
+                    double error;
+                    try {
+                        Posterior posterior = engine.getValue().posterior(queryVariables, evidence);
+                        actual = posterior.getProbabilities();
+                        error = Math.abs(posterior.getEvidenceProbability() - expected[expected.length - 1]);
+                        for (int k = 0; k < actual.length; k++) {
+                            error = Math.max(error, Math.abs(actual[k] - expected[k]));
+                        }
+                        QueryResult answer = engine.getValue().query(new HashMap<>(single), new HashMap<>(evidence),
+                                new ArrayList<>(hidden));
+                        error = Math.max(error, Math.abs(answer.getProbability() - expectedSingle));
+                        Map<String, String> extra = new HashMap<>(evidence);
+                        extra.put(UNKNOWN, "T");
+                        QueryResult ignoring = engine.getValue().query(new HashMap<>(single), extra, new ArrayList<>(hidden));
+                        error = Math.max(error, Math.abs(ignoring.getProbability() - expectedSingle));
+                    } catch (RuntimeException e) {
+                        System.out.println("FAIL " + file + " " + engine.getKey() + ": P(" + queryVariables + " | " + evidence
+                                + ") threw " + e);
+                        failures++;
+                        continue;
+                    }
+                    worst = Math.max(worst, error);
+                    if (!(error <= TOLERANCE)) {
+                        failures++;
+                        System.out.println("FAIL " + file + " " + engine.getKey() + ": P(" + queryVariables + " | " + evidence
+                                + ") = " + Arrays.toString(actual) + ", expected " + Arrays.toString(
+                                Arrays.copyOf(expected, expected.length - 1)));
+                    }
+                }
+                checked++;
+            }
+            // Every real variable is hidden, as in an input line
+            List<String> allHidden = new ArrayList<>();
+            for (BayesianNode node : network.getNodes()) {
+                allHidden.add(node.getName());
+            }
+            for (Map.Entry<String, InferenceEngine> engine : engines.entrySet()) {
+                try {
+                    engine.getValue().query(new HashMap<>(Map.of(UNKNOWN, "T")), new HashMap<>(), new ArrayList<>(allHidden));
+                    failures++;
+                    System.out.println("FAIL " + file + " " + engine.getKey() + ": P(" + UNKNOWN + "=T) was answered");
+                } catch (IllegalStateException e) {
+                    // Rejected, as Ex1 expects
+                } catch (RuntimeException e) {
+                    failures++;
+                    System.out.println("FAIL " + file + " " + engine.getKey() + ": P(" + UNKNOWN + "=T) threw " + e);
+                }
+            }
+            System.out.println(String.format("%s: %d queries, %d nodes, largest error %.2e", file, checked, network.size(), worst));
+        }
+        System.out.println(failures == 0 ? "all posteriors match" : failures + " mismatches");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    // P(x) of every full assignment, node order with the last node fastest
+    static double[] joint(BayesianNetwork network) {
+        int[] cardinalities = cardinalities(network);
+        int size = 1;
+        for (int cardinality : cardinalities) {
+            size = Math.multiplyExact(size, cardinality);
+        }
+        double[] joint = new double[size];
+        int[] assignment = new int[network.size()];
+        for (int position = 0; position < size; position++) {
+            double probability = 1;
+            for (int id = 0; id < network.size(); id++) {
+                int index = 0;
+                for (int parent : network.getParents(id)) {
+                    index = index * cardinalities[parent] + assignment[parent];
+                }
+                probability *= network.getNode(id).getProbabilities().get(index * cardinalities[id] + assignment[id]);
+            }
+            joint[position] = probability;
+            for (int d = assignment.length - 1; d >= 0 && ++assignment[d] == cardinalities[d]; d--) {
+                assignment[d] = 0;
+            }
+        }
+        return joint;
+    }
+
+    // The normalized joint of the query variables (last one fastest) followed by P(evidence)
+    static double[] enumerate(BayesianNetwork network, double[] joint, List<String> queryVariables,
+                              Map<String, String> evidence) {
+        int[] cardinalities = cardinalities(network);
+        int[] ids = new int[queryVariables.size()];
+        int size = 1;
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = network.getId(queryVariables.get(i));
+            size *= cardinalities[ids[i]];
+        }
+        double[] result = new double[size + 1];
+        int[] assignment = new int[network.size()];
+        for (double probability : joint) {
+            boolean consistent = true;
+            for (Map.Entry<String, String> entry : evidence.entrySet()) {
+                int id = network.getId(entry.getKey());
+                consistent &= network.getNode(id).getOutcomes().get(assignment[id]).equals(entry.getValue());
+            }
+            if (consistent) {
+                int index = 0;
+                for (int id : ids) {
+                    index = index * cardinalities[id] + assignment[id];
+                }
+                result[index] += probability;
+                result[size] += probability;
+            }
+            for (int d = assignment.length - 1; d >= 0 && ++assignment[d] == cardinalities[d]; d--) {
+                assignment[d] = 0;
+            }
+        }
+        for (int k = 0; k < size; k++) {
+            result[k] /= result[size];
+        }
+        return result;
+    }
+
+    // A full assignment drawn from the joint
+    static int[] sample(BayesianNetwork network, double[] joint, Random random) {
+        int[] cardinalities = cardinalities(network);
+        double target = random.nextDouble();
+        int position = 0;
+        for (double cumulative = joint[0]; cumulative < target && position < joint.length - 1; ) {
+            cumulative += joint[++position];
+        }
+        int[] assignment = new int[network.size()];
+        for (int d = assignment.length - 1; d >= 0; d--) {
+            assignment[d] = position % cardinalities[d];
+            position /= cardinalities[d];
+        }
+        return assignment;
+    }
+
+    static int[] cardinalities(BayesianNetwork network) {
+        int[] cardinalities = new int[network.size()];
+        for (int id = 0; id < network.size(); id++) {
+            cardinalities[id] = network.getNode(id).getOutcomes().size();
+        }
+        return cardinalities;
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.DoubleBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+// Generated networks for the benchmarks, with random CPTs drawn from a seed so runs are reproducible
+public class SyntheticNetworks {
+
+    private SyntheticNetworks() {
+    }
+
+    // rows x cols grid of binary variables; each node's parents are its upper and left neighbours
+    public static BayesianNetwork grid(int rows, int cols, long seed) {
+        Random random = new Random(seed);
+        BayesianNetwork network = new BayesianNetwork();
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                List<String> given = new ArrayList<>();
+                if (r > 0) {
+                    given.add(gridName(r - 1, c));
+                }
+                if (c > 0) {
+                    given.add(gridName(r, c - 1));
+                }
+                network.addNode(node(gridName(r, c), 2, given, 1 << given.size(), random));
+            }
+        }
+        network.freeze();
+        return network;
+    }
+
+    private static String gridName(int row, int col) {
+        return "G" + row + "_" + col;
+    }
+
+    // DAG over n variables in topological order; each picks up to maxInDegree parents among the previous 'window'
+    // nodes (all of them when window is 0) and has 2..maxOutcomes outcomes
+    public static BayesianNetwork randomDag(int n, int maxInDegree, int maxOutcomes, int window, long seed) {
+        Random random = new Random(seed);
+        BayesianNetwork network = new BayesianNetwork();
+        int[] outcomes = new int[n];
+        for (int i = 0; i < n; i++) {
+            outcomes[i] = 2 + random.nextInt(Math.max(1, maxOutcomes - 1));
+            int first = window > 0 ? Math.max(0, i - window) : 0;
+            List<Integer> candidates = new ArrayList<>();
+            for (int j = first; j < i; j++) {
+                candidates.add(j);
+            }
+            Collections.shuffle(candidates, random);
+            List<Integer> parents = new ArrayList<>(candidates.subList(0, Math.min(candidates.size(), random.nextInt(maxInDegree + 1))));
+            Collections.sort(parents);
+
+            List<String> given = new ArrayList<>();
+            int rowCount = 1;
+            for (int parent : parents) {
+                given.add("X" + parent);
+                rowCount *= outcomes[parent];
+            }
+            network.addNode(node("X" + i, outcomes[i], given, rowCount, random));
+        }
+        network.freeze();
+        return network;
+    }
+
+    private static BayesianNode node(String name, int outcomeCount, List<String> given, int rowCount, Random random) {
+        List<String> outcomes = new ArrayList<>();
+        for (int k = 0; k < outcomeCount; k++) {
+            outcomes.add(outcomeCount == 2 ? (k == 0 ? "T" : "F") : "s" + k);
+        }
+        double[] table = new double[rowCount * outcomeCount];
+        for (int row = 0; row < rowCount; row++) {
+            double sum = 0;
+            for (int k = 0; k < outcomeCount; k++) {
+                table[row * outcomeCount + k] = 0.05 + random.nextDouble();
+                sum += table[row * outcomeCount + k];
+            }
+            for (int k = 0; k < outcomeCount; k++) {
+                table[row * outcomeCount + k] /= sum;
+            }
+        }
+        BayesianNode node = new BayesianNode(name, outcomes, given);
+        node.setProbabilities(DoubleBuffer.wrap(table));
+        return node;
+    }
+
+    // XMLBIF text of a network, in the layout XMLParser reads
+    public static void writeXml(BayesianNetwork network, Path file) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(file)) {
+            out.write("<NETWORK>\n");
+            for (BayesianNode node : network.getNodes()) {
+                out.write("<VARIABLE>\n<NAME>" + node.getName() + "</NAME>\n");
+                for (String outcome : node.getOutcomes()) {
+                    out.write("<OUTCOME>" + outcome + "</OUTCOME>\n");
+                }
+                out.write("</VARIABLE>\n");
+            }
+            for (BayesianNode node : network.getNodes()) {
+                out.write("<DEFINITION>\n<FOR>" + node.getName() + "</FOR>\n");
+                for (String parent : node.getGiven()) {
+                    out.write("<GIVEN>" + parent + "</GIVEN>\n");
+                }
+                StringBuilder table = new StringBuilder("<TABLE>");
+                DoubleBuffer probabilities = node.getProbabilities();
+                for (int i = 0; i < probabilities.limit(); i++) {
+                    table.append(i == 0 ? "" : " ").append(probabilities.get(i));
+                }
+                out.write(table.append("</TABLE>\n</DEFINITION>\n").toString());
+            }
+            out.write("</NETWORK>\n");
+        }
+    }
+}
@@ -0,0 +1,397 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Network polynomial of a Bayesian network as a flat arithmetic circuit, built by CircuitCompiler.
+// Nodes are numbered children before parents and stored as primitive arrays: a kind per node, a parameter value,
+// and the children in one array indexed by childStart. The first nodes are the evidence indicators, one per outcome
+// of every variable in network order; products have exactly two children.
+// With the indicators set from the evidence, one upward pass gives P(evidence) at the root, and one downward pass
+// of partial derivatives then gives P(x, evidence) for every outcome x of every unobserved variable at its indicator.
+// The circuit is immutable and shared; each thread evaluates it through its own Evaluator, which allocates nothing.
+public class ArithmeticCircuit {
+    public static final String EXTENSION = ".ac";
+    private static final int MAGIC = 0x41434952; // "ACIR"
+    private static final int VERSION = 2;
+
+    static final byte INDICATOR = 0;
+    static final byte PARAMETER = 1;
+    static final byte SUM = 2;
+    static final byte PRODUCT = 3;
+
+    private final String[] variables;
+    private final String[][] outcomes;
+    private final int[] firstIndicator;
+    private final byte[] kinds;
+    private final double[] parameters;
+    private final int[] childStart;
+    private final int[] children;
+    private final int root;
+
+    // fingerprint() of the network the circuit was compiled from
+    private final long tables;
+
+    // Work of one pass, counted once
+    private final int upwardAdditions;
+    private final int upwardMultiplications;
+    private final int downwardAdditions;
+    private final int downwardMultiplications;
+
+    ArithmeticCircuit(String[] variables, String[][] outcomes, long tables, byte[] kinds, double[] parameters,
+                      int[] childStart, int[] children, int root) {
+        this.variables = variables;
+        this.outcomes = outcomes;
+        this.firstIndicator = new int[variables.length + 1];
+        for (int v = 0; v < variables.length; v++) {
+            firstIndicator[v + 1] = firstIndicator[v] + outcomes[v].length;
+        }
+        this.kinds = kinds;
+        this.parameters = parameters;
+        this.childStart = childStart;
+        this.children = children;
+        this.root = root;
+        this.tables = tables;
+
+        // Upward, a sum of k children is k - 1 additions and a product one multiplication. Downward, every edge adds
+        // into a child's derivative, and under a product that derivative is first multiplied by the other child's value.
+        int upAdditions = 0;
+        int upMultiplications = 0;
+        int downAdditions = 0;
+        for (int node = 0; node < kinds.length; node++) {
+            if (kinds[node] == SUM) {
+                upAdditions += childStart[node + 1] - childStart[node] - 1;
+                downAdditions += childStart[node + 1] - childStart[node];
+            } else if (kinds[node] == PRODUCT) {
+                upMultiplications++;
+                downAdditions += 2;
+            }
+        }
+        this.upwardAdditions = upAdditions;
+        this.upwardMultiplications = upMultiplications;
+        this.downwardAdditions = downAdditions;
+        this.downwardMultiplications = 2 * upMultiplications;
+    }
+
+    public int getVariableCount() {
+        return variables.length;
+    }
+
+    public String getVariable(int variable) {
+        return variables[variable];
+    }
+
+    public int getOutcomeCount(int variable) {
+        return outcomes[variable].length;
+    }
+
+    public String getOutcome(int variable, int outcome) {
+        return outcomes[variable][outcome];
+    }
+
+    public int getNodeCount() {
+        return kinds.length;
+    }
+
+    public int getEdgeCount() {
+        return children.length;
+    }
+
+    public int getUpwardAdditions() {
+        return upwardAdditions;
+    }
+
+    public int getUpwardMultiplications() {
+        return upwardMultiplications;
+    }
+
+    public int getDownwardAdditions() {
+        return downwardAdditions;
+    }
+
+    public int getDownwardMultiplications() {
+        return downwardMultiplications;
+    }
+
+    // Whether the circuit was compiled from a network with these variables and outcomes, in this order
+    public boolean matches(BayesianNetwork network) {
+        if (network.size() != variables.length) {
+            return false;
+        }
+        for (int v = 0; v < variables.length; v++) {
+            BayesianNode node = network.getNode(v);
+            if (!node.getName().equals(variables[v]) || !node.getOutcomes().equals(Arrays.asList(outcomes[v]))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether the circuit was compiled from the network's current parents and tables
+    public boolean matchesTables(BayesianNetwork network) {
+        return tables == fingerprint(network);
+    }
+
+    // 64-bit hash of every node's parents and table entries, which the circuit's parameters were folded from
+    public static long fingerprint(BayesianNetwork network) {
+        long hash = network.size();
+        for (int id = 0; id < network.size(); id++) {
+            for (int parent : network.getParents(id)) {
+                hash = mix(hash, parent);
+            }
+            DoubleBuffer table = network.getNode(id).getProbabilities();
+            hash = mix(hash, table.limit());
+            for (int i = 0; i < table.limit(); i++) {
+                hash = mix(hash, Double.doubleToLongBits(table.get(i)));
+            }
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        hash = (hash ^ value) * 0x9E3779B97F4A7C15L;
+        return hash ^ (hash >>> 29);
+    }
+
+    public Evaluator newEvaluator() {
+        return new Evaluator();
+    }
+
+    @Override
+    public String toString() {
+        int sums = 0;
+        int products = 0;
+        for (byte kind : kinds) {
+            sums += kind == SUM ? 1 : 0;
+            products += kind == PRODUCT ? 1 : 0;
+        }
+        return "arithmetic circuit: " + kinds.length + " nodes (" + sums + " sums, " + products + " products), "
+                + children.length + " edges";
+    }
+
+    // Per-thread evaluation state: the evidence, and one value and one derivative per node
+    public final class Evaluator {
+        private final double[] values;
+        private final double[] derivatives;
+        private final int[] evidence;
+
+        private Evaluator() {
+            values = parameters.clone();
+            derivatives = new double[kinds.length];
+            evidence = new int[variables.length];
+            Arrays.fill(evidence, -1);
+        }
+
+        public ArithmeticCircuit getCircuit() {
+            return ArithmeticCircuit.this;
+        }
+
+        public void clearEvidence() {
+            Arrays.fill(evidence, -1);
+        }
+
+        // Observe an outcome; a negative outcome matches none, so the evidence gets probability zero
+        public void observe(int variable, int outcome) {
+            evidence[variable] = outcome < 0 ? outcomes[variable].length : outcome;
+        }
+
+        public void forget(int variable) {
+            evidence[variable] = -1;
+        }
+
+        // Upward pass: every node's value under the current evidence; returns P(evidence)
+        public double evaluate() {
+            for (int v = 0; v < evidence.length; v++) {
+                int observed = evidence[v];
+                for (int node = firstIndicator[v], k = 0; node < firstIndicator[v + 1]; node++, k++) {
+                    values[node] = observed < 0 || observed == k ? 1.0 : 0.0;
+                }
+            }
+            for (int node = firstIndicator[variables.length]; node < kinds.length; node++) {
+                byte kind = kinds[node];
+                if (kind == PRODUCT) {
+                    int first = childStart[node];
+                    values[node] = values[children[first]] * values[children[first + 1]];
+                } else if (kind == SUM) {
+                    double sum = 0;
+                    for (int c = childStart[node], end = childStart[node + 1]; c < end; c++) {
+                        sum += values[children[c]];
+                    }
+                    values[node] = sum;
+                }
+            }
+            return values[root];
+        }
+
+        // Downward pass after evaluate(): the derivative of the root by every node, parents before children
+        public void differentiate() {
+            Arrays.fill(derivatives, 0.0);
+            derivatives[root] = 1.0;
+            for (int node = root; node >= 0; node--) {
+                double derivative = derivatives[node];
+                if (derivative == 0) {
+                    continue;
+                }
+                byte kind = kinds[node];
+                if (kind == PRODUCT) {
+                    int a = children[childStart[node]];
+                    int b = children[childStart[node] + 1];
+                    derivatives[a] += derivative * values[b];
+                    derivatives[b] += derivative * values[a];
+                } else if (kind == SUM) {
+                    for (int c = childStart[node], end = childStart[node + 1]; c < end; c++) {
+                        derivatives[children[c]] += derivative;
+                    }
+                }
+            }
+        }
+
+        // P(evidence) from the last evaluate()
+        public double getEvidenceProbability() {
+            return values[root];
+        }
+
+        // After differentiate(): P(variable = outcome, evidence on the other variables)
+        public double getJoint(int variable, int outcome) {
+            return derivatives[firstIndicator[variable] + outcome];
+        }
+
+        // After differentiate(), for an unobserved variable: P(variable = outcome | evidence)
+        public double getMarginal(int variable, int outcome) {
+            return getJoint(variable, outcome) / values[root];
+        }
+    }
+
+    // Layout (little-endian): magic, version, variable count, then per variable its name and outcomes;
+    // node count, edge count and root, then the kinds padded to 8 bytes, the parameters, childStart and children
+    public void write(Path file) throws IOException {
+        int headerSize = 12;
+        for (int v = 0; v < variables.length; v++) {
+            headerSize += stringSize(variables[v]) + 4;
+            for (String outcome : outcomes[v]) {
+                headerSize += stringSize(outcome);
+            }
+        }
+        headerSize += 20;
+        long size = ((headerSize + kinds.length + 7L) & ~7L) + 8L * parameters.length + 4L * childStart.length
+                + 4L * children.length;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(file + ": circuits larger than 2 GB are not supported");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(variables.length);
+        for (int v = 0; v < variables.length; v++) {
+            putString(buffer, variables[v]);
+            buffer.putInt(outcomes[v].length);
+            for (String outcome : outcomes[v]) {
+                putString(buffer, outcome);
+            }
+        }
+        buffer.putLong(tables).putInt(kinds.length).putInt(children.length).putInt(root);
+        buffer.put(kinds);
+        buffer.position((buffer.position() + 7) & ~7);
+        buffer.asDoubleBuffer().put(parameters);
+        buffer.position(buffer.position() + 8 * parameters.length);
+        buffer.asIntBuffer().put(childStart).put(children);
+        buffer.position(0);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    // The arrays are copied out of the mapping in bulk, so evaluation reads plain heap arrays
+    public static ArithmeticCircuit load(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + ": circuits larger than 2 GB are not supported");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapped.limit() < 12 || mapped.getInt() != MAGIC) {
+            throw new IOException(file + ": not an arithmetic circuit");
+        }
+        int version = mapped.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + ": unsupported circuit version " + version);
+        }
+
+        try {
+            String[] variables = new String[mapped.getInt()];
+            String[][] outcomes = new String[variables.length][];
+            int indicators = 0;
+            for (int v = 0; v < variables.length; v++) {
+                variables[v] = getString(mapped);
+                outcomes[v] = new String[mapped.getInt()];
+                for (int k = 0; k < outcomes[v].length; k++) {
+                    outcomes[v][k] = getString(mapped);
+                }
+                indicators += outcomes[v].length;
+            }
+            long tables = mapped.getLong();
+            int nodeCount = mapped.getInt();
+            int edgeCount = mapped.getInt();
+            int root = mapped.getInt();
+            byte[] kinds = new byte[nodeCount];
+            mapped.get(kinds);
+            mapped.position((mapped.position() + 7) & ~7);
+            double[] parameters = new double[nodeCount];
+            mapped.asDoubleBuffer().get(parameters);
+            mapped.position(mapped.position() + 8 * nodeCount);
+            int[] childStart = new int[nodeCount + 1];
+            int[] children = new int[edgeCount];
+            mapped.asIntBuffer().get(childStart).get(children);
+            checkStructure(file, indicators, kinds, childStart, children, root);
+            return new ArithmeticCircuit(variables, outcomes, tables, kinds, parameters, childStart, children, root);
+        } catch (RuntimeException e) {
+            throw new IOException(file + ": truncated or corrupt circuit", e);
+        }
+    }
+
+    // Children before parents and products with two children, which the passes rely on
+    private static void checkStructure(Path file, int indicators, byte[] kinds, int[] childStart, int[] children, int root)
+            throws IOException {
+        if (root < 0 || root >= kinds.length || indicators > kinds.length || childStart[0] != 0
+                || childStart[kinds.length] != children.length) {
+            throw new IOException(file + ": inconsistent circuit header");
+        }
+        for (int node = 0; node < kinds.length; node++) {
+            int count = childStart[node + 1] - childStart[node];
+            boolean valid = node < indicators ? kinds[node] == INDICATOR && count == 0
+                    : kinds[node] == PRODUCT ? count == 2 : kinds[node] == SUM ? count > 0 : kinds[node] == PARAMETER && count == 0;
+            for (int c = childStart[node]; valid && c < childStart[node + 1]; c++) {
+                valid = children[c] >= 0 && children[c] < node;
+            }
+            if (!valid) {
+                throw new IOException(file + ": malformed circuit node " + node);
+            }
+        }
+    }
+
+    private static int stringSize(String s) {
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
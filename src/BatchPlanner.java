@@ -0,0 +1,151 @@
+import java.io.PrintStream;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+// Answers a whole batch of P(...) queries with variable elimination, grouped by their evidence.
+// All groups share one factor cache, bounded by -Dbn.factorCacheBytes however many groups run at once, so a group's
+// evidence-restricted CPTs are built once and a bucket eliminated for one query is reused by each later query that
+// eliminates the same variable from the same factors.
+// A reused bucket still counts toward the query, so every query reports the work it would cost on its own;
+// the statistics show how much less work the batch actually did.
+// Queries over the factor budget go to the fallback sampler when one is configured, as in the other modes.
+// The query cache is not consulted: repeated lines within a group are already answered once.
+public class BatchPlanner {
+    private final BayesianNetwork network;
+    private final InferenceOptions options;
+    private final InferenceEngine fallback;
+    private final FactorCache cache;
+
+    private final LongAdder groups = new LongAdder();
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder duplicates = new LongAdder();
+    private final LongAdder estimated = new LongAdder();
+    private final LongAdder reportedAdditions = new LongAdder();
+    private final LongAdder reportedMultiplications = new LongAdder();
+    private final LongAdder savedAdditions = new LongAdder();
+    private final LongAdder savedMultiplications = new LongAdder();
+
+    public BatchPlanner(BayesianNetwork network, InferenceOptions options) {
+        this.network = network;
+        this.options = options;
+        this.fallback = InferenceEngine.fallback(network, options);
+        this.cache = options.getFactorCacheBytes() > 0 ? new FactorCache(options.getFactorCacheBytes()) : null;
+    }
+
+    // Answers in input order. A query rejected for its factor size is estimated by the fallback sampler, or gets null
+    // with the reason printed to stderr when there is none.
+    // Groups run as separate tasks on the executor, largest first; with no executor they run on the caller.
+    public QueryResult[] answer(List<Query> batch, ExecutorService executor) throws InterruptedException, ExecutionException {
+        if (cache != null) {
+            cache.validate(network.getVersion());
+        }
+        Map<Map<String, String>, List<Integer>> byEvidence = new LinkedHashMap<>();
+        for (int i = 0; i < batch.size(); i++) {
+            byEvidence.computeIfAbsent(batch.get(i).getEvidence(), evidence -> new ArrayList<>()).add(i);
+        }
+        QueryResult[] results = new QueryResult[batch.size()];
+        if (executor == null) {
+            for (List<Integer> members : byEvidence.values()) {
+                answerGroup(batch, members, results);
+            }
+            return results;
+        }
+        List<List<Integer>> ordered = new ArrayList<>(byEvidence.values());
+        ordered.sort(Comparator.comparingInt(members -> -members.size()));
+        List<Future<?>> pending = new ArrayList<>();
+        for (List<Integer> members : ordered) {
+            pending.add(executor.submit(() -> answerGroup(batch, members, results)));
+        }
+        for (Future<?> future : pending) {
+            future.get();
+        }
+        return results;
+    }
+
+    // The queries of one evidence set, one after another through the shared cache; repeated lines are answered once
+    private void answerGroup(List<Query> batch, List<Integer> members, QueryResult[] results) {
+        Map<List<Object>, QueryResult> answered = new HashMap<>();
+        for (int index : members) {
+            Query query = batch.get(index);
+            List<Object> key = List.of(query.getQueryVariables(), query.getHiddenVariables());
+            QueryResult result;
+            if (answered.containsKey(key)) {
+                result = answered.get(key);
+                duplicates.increment();
+                if (result != null) {
+                    savedAdditions.add(result.getAdditionCount());
+                    savedMultiplications.add(result.getMultiplicationCount());
+                }
+            } else {
+                try {
+                    // The elimination prunes the maps and order it is given
+                    result = VariableElimination.answer(network, new HashMap<>(query.getQueryVariables()),
+                            new HashMap<>(query.getEvidence()), new ArrayList<>(query.getHiddenVariables()), options, cache);
+                } catch (IllegalStateException e) {
+                    if (fallback != null) {
+                        result = fallback.query(new HashMap<>(query.getQueryVariables()), new HashMap<>(query.getEvidence()),
+                                new ArrayList<>(query.getHiddenVariables()));
+                        estimated.increment();
+                    } else {
+                        System.err.println(query.getLine() + ": " + e.getMessage());
+                        result = null;
+                    }
+                }
+                answered.put(key, result);
+            }
+            if (result != null) {
+                reportedAdditions.add(result.getAdditionCount());
+                reportedMultiplications.add(result.getMultiplicationCount());
+            }
+            results[index] = result;
+        }
+        groups.increment();
+        queries.add(members.size());
+    }
+
+    public void reportStatistics(PrintStream out) {
+        long saved = savedAdditions.sum() + (cache != null ? cache.getReusedAdditions() : 0);
+        long savedProducts = savedMultiplications.sum() + (cache != null ? cache.getReusedMultiplications() : 0);
+        out.println("batch planner: " + queries.sum() + " queries in " + groups.sum() + " evidence groups, "
+                + duplicates.sum() + " repeated, " + estimated.sum() + " estimated by sampling; reported " + reportedAdditions.sum() + " additions and "
+                + reportedMultiplications.sum() + " multiplications, performed "
+                + (reportedAdditions.sum() - saved) + " and " + (reportedMultiplications.sum() - savedProducts));
+        if (cache != null) {
+            out.println(cache);
+        }
+    }
+
+    // One parsed P(...) line; the planner never modifies the maps and order it is given
+    public static final class Query {
+        private final String line;
+        private final Map<String, String> queryVariables;
+        private final Map<String, String> evidence;
+        private final List<String> hiddenVariables;
+
+        public Query(String line, Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+            this.line = line;
+            this.queryVariables = Collections.unmodifiableMap(queryVariables);
+            this.evidence = Collections.unmodifiableMap(evidence);
+            this.hiddenVariables = Collections.unmodifiableList(hiddenVariables);
+        }
+
+        public String getLine() {
+            return line;
+        }
+
+        public Map<String, String> getQueryVariables() {
+            return queryVariables;
+        }
+
+        public Map<String, String> getEvidence() {
+            return evidence;
+        }
+
+        public List<String> getHiddenVariables() {
+            return hiddenVariables;
+        }
+    }
+}
@@ -1,95 +1,149 @@
 import java.util.*;
 
 public class BayesBall {
-    private BayesianNetwork network;
-    private Set<String> visitedNodes;
+    private static final int CACHED_TRAVERSALS = 64;
+
+    private final BayesianNetwork network;
+
+    // Reachable sets of recent traversals, keyed by source and evidence; shared by concurrent queries
+    private final Map<Traversal, BitSet> reachableCache;
 
     public BayesBall(BayesianNetwork network) {
         this.network = network;
-        this.visitedNodes = new HashSet<>();
+        this.reachableCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Traversal, BitSet> eldest) {
+                return size() > CACHED_TRAVERSALS;
+            }
+        });
     }
 
     public boolean areIndependents(String start, String end, Set<String> evidence) {
-        this.visitedNodes.clear();
-        return !BBTravel(start, end, evidence, Direction.DOWN);
-    }
-
-    private List<String> getParents(String nodeName) {
-        List<String> parents = new ArrayList<>();
-        for (BayesianNode node : network.getNodes()) {
-            if (node.getName().equals(nodeName)) {
-                parents.addAll(node.getGiven());
-            }
+        if (start.equals(end)) {
+            return false;
         }
-        return parents;
-    }
+        int startId = network.getId(start);
+        int endId = network.getId(end);
+        if (startId < 0 || endId < 0) {
+            return true;
+        }
+        BitSet evidenceIds = toIds(evidence);
 
-    private List<String> getChildren(String nodeName) {
-        List<String> children = new ArrayList<>();
-        for (BayesianNode node : network.getNodes()) {
-            if (node.getGiven().contains(nodeName)) {
-                children.add(node.getName());
+        // d-separation is symmetric for unobserved end points, so a traversal from either end answers the query
+        if (!evidenceIds.get(startId) && !evidenceIds.get(endId)) {
+            BitSet reached = reachableCache.get(new Traversal(endId, evidenceIds));
+            if (reached != null) {
+                return !reached.get(startId);
             }
         }
-        return children;
+        return !cachedReachable(startId, evidenceIds).get(endId);
     }
 
-    private boolean BBTravel(String current, String target, Set<String> evidence, Direction direction) {
-        if (current.equals(target)) {
-            return true;
+    // Every node d-connected to the source given the evidence (the source included), from one traversal
+    public BitSet reachable(String source, Set<String> evidence) {
+        int sourceId = network.getId(source);
+        if (sourceId < 0) {
+            return new BitSet();
         }
+        return (BitSet) cachedReachable(sourceId, toIds(evidence)).clone();
+    }
 
-        List<String> parents = getParents(current);
-        List<String> children = getChildren(current);
-
-        if (!visitedNodes.add(current + direction)) {
-            return false;
+    private BitSet cachedReachable(int source, BitSet evidence) {
+        Traversal key = new Traversal(source, evidence);
+        BitSet reached = reachableCache.get(key);
+        if (reached == null) {
+            reached = reachable(source, evidence);
+            reachableCache.put(key, reached);
         }
+        return reached;
+    }
 
-        if (!evidence.contains(current)) {
-            if (direction == Direction.DOWN) {
-                return traverseChildrenFirst(children, target, evidence) || traverseParentsLater(parents, target, evidence);
-            } else if (direction == Direction.UP) {
-                return traverseChildrenFirst(children, target, evidence);
-            }
-        } else {
-            if (direction == Direction.DOWN) {
-                return false;
-            } else if (direction == Direction.UP) {
-                return traverseParentsFirst(parents, current, target, evidence);
+    private BitSet toIds(Set<String> evidence) {
+        BitSet ids = new BitSet(network.size());
+        for (String name : evidence) {
+            int id = network.getId(name);
+            if (id >= 0) {
+                ids.set(id);
             }
         }
-        return false;
+        return ids;
     }
 
-    private boolean traverseChildrenFirst(List<String> children, String target, Set<String> evidence) {
-        for (String child : children) {
-            if (BBTravel(child, target, evidence, Direction.UP)) {
-                return true;
+    // Iterative Bayes-Ball from a source with one visited bit per node and direction.
+    // A ball arriving from a child passes to parents and children unless the node is observed;
+    // one arriving from a parent passes to the children, or bounces back to the parents of an observed node.
+    public BitSet reachable(int source, BitSet evidence) {
+        InferenceEvents.BayesBall event = new InferenceEvents.BayesBall();
+        event.begin();
+        int n = network.size();
+        BitSet fromChild = new BitSet(n);
+        BitSet fromParent = new BitSet(n);
+        BitSet reached = new BitSet(n);
+        int[] stack = new int[2 * n + 1];
+        int top = 0;
+
+        fromChild.set(source);
+        reached.set(source);
+        stack[top++] = source << 1;
+        int visited = 0;
+        while (top > 0) {
+            int state = stack[--top];
+            visited++;
+            int node = state >>> 1;
+            boolean cameFromChild = (state & 1) == 0;
+            boolean observed = evidence.get(node);
+
+            if (!observed) {
+                for (int child : network.getChildren(node)) {
+                    if (!fromParent.get(child)) {
+                        fromParent.set(child);
+                        reached.set(child);
+                        stack[top++] = (child << 1) | 1;
+                    }
+                }
+            }
+            if (cameFromChild != observed) {
+                for (int parent : network.getParents(node)) {
+                    if (!fromChild.get(parent)) {
+                        fromChild.set(parent);
+                        reached.set(parent);
+                        stack[top++] = parent << 1;
+                    }
+                }
             }
         }
-        return false;
+        InferenceMetrics.bayesBall(visited);
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = network.getNode(source).getName();
+            event.visited = visited;
+            event.reached = reached.cardinality();
+            event.commit();
+        }
+        return reached;
     }
 
-    private boolean traverseParentsLater(List<String> parents, String target, Set<String> evidence) {
-        for (String parent : parents) {
-            if (BBTravel(parent, target, evidence, Direction.DOWN)) {
-                return true;
-            }
+    private static final class Traversal {
+        private final int source;
+        private final BitSet evidence;
+
+        Traversal(int source, BitSet evidence) {
+            this.source = source;
+            this.evidence = evidence;
         }
-        return false;
-    }
 
-    private boolean traverseParentsFirst(List<String> parents, String current, String target, Set<String> evidence) {
-        for (String parent : parents) {
-            if (!current.equals(parent) && BBTravel(parent, target, evidence, Direction.DOWN)) {
-                return true;
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Traversal)) {
+                return false;
             }
+            Traversal other = (Traversal) o;
+            return source == other.source && evidence.equals(other.evidence);
         }
-        return false;
-    }
 
-    private enum Direction {
-        UP, DOWN
+        @Override
+        public int hashCode() {
+            return 31 * source + evidence.hashCode();
+        }
     }
 }
@@ -1,27 +1,174 @@
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.DoubleBuffer;
+import java.util.*;
 
 public class BayesianNetwork {
     private final List<BayesianNode> nodes;
+    private final Map<String, Integer> index;
+
+    // Adjacency built by freeze(); node ids are positions in the node list
+    private volatile boolean frozen;
+    private int[][] parents;
+    private int[][] children;
+    private int[] topologicalOrder;
+    private BitSet[] ancestors;
+
+    // Bumped by every change to the nodes or their tables, so cached answers can tell they are stale
+    private volatile long version;
 
     public BayesianNetwork() {
         this.nodes = new ArrayList<>();
+        this.index = new HashMap<>();
     }
 
     public void addNode(BayesianNode node) {
+        if (frozen) {
+            throw new IllegalStateException("Cannot add " + node.getName() + " to a frozen network.");
+        }
+        index.putIfAbsent(node.getName(), nodes.size());
         nodes.add(node);
+        version++;
     }
 
     public List<BayesianNode> getNodes() {
-        return nodes;
+        return Collections.unmodifiableList(nodes);
     }
 
     public BayesianNode getNode(String name) {
-        for (BayesianNode node : nodes) {
-            if (node.getName().equals(name)) {
-                return node;
+        Integer id = index.get(name);
+        return id == null ? null : nodes.get(id);
+    }
+
+    public BayesianNode getNode(int id) {
+        return nodes.get(id);
+    }
+
+    // Id of a node, or -1 if the network has no node with that name
+    public int getId(String name) {
+        Integer id = index.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // Replace the CPT of a node with one of the same layout; the structure stays as it is
+    public synchronized void updateProbabilities(String name, DoubleBuffer probabilities) {
+        BayesianNode node = getNode(name);
+        if (node == null) {
+            throw new IllegalArgumentException("No node named " + name);
+        }
+        if (node.getProbabilities() != null && probabilities.limit() != node.getProbabilities().limit()) {
+            throw new IllegalArgumentException("Table for " + name + " has " + probabilities.limit()
+                    + " entries, expected " + node.getProbabilities().limit());
+        }
+        node.setProbabilities(probabilities);
+        version++;
+    }
+
+    // Build the parent/child arrays, topological order and ancestor sets once the structure is complete.
+    // Afterwards the network is read-only and safe to share between threads.
+    public synchronized void freeze() {
+        if (frozen) {
+            return;
+        }
+        int n = nodes.size();
+        parents = new int[n][];
+        List<List<Integer>> childLists = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            childLists.add(new ArrayList<>());
+        }
+        for (int i = 0; i < n; i++) {
+            List<Integer> known = new ArrayList<>();
+            for (String parent : nodes.get(i).getGiven()) {
+                Integer id = index.get(parent);
+                if (id != null) {
+                    known.add(id);
+                    childLists.get(id).add(i);
+                }
             }
+            parents[i] = known.stream().mapToInt(Integer::intValue).toArray();
+        }
+        children = new int[n][];
+        for (int i = 0; i < n; i++) {
+            children[i] = childLists.get(i).stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        // Kahn's algorithm, taking ready nodes in file order
+        int[] pending = new int[n];
+        Deque<Integer> ready = new ArrayDeque<>();
+        for (int i = 0; i < n; i++) {
+            pending[i] = parents[i].length;
+            if (pending[i] == 0) {
+                ready.add(i);
+            }
+        }
+        topologicalOrder = new int[n];
+        int count = 0;
+        while (!ready.isEmpty()) {
+            int id = ready.poll();
+            topologicalOrder[count++] = id;
+            for (int child : children[id]) {
+                if (--pending[child] == 0) {
+                    ready.add(child);
+                }
+            }
+        }
+        if (count != n) {
+            throw new IllegalStateException("The network contains a directed cycle.");
+        }
+
+        ancestors = new BitSet[n];
+        for (int id : topologicalOrder) {
+            BitSet set = new BitSet(n);
+            for (int parent : parents[id]) {
+                set.set(parent);
+                set.or(ancestors[parent]);
+            }
+            ancestors[id] = set;
+        }
+        frozen = true;
+    }
+
+    private void ensureFrozen() {
+        if (!frozen) {
+            freeze();
+        }
+    }
+
+    public int[] getParents(int id) {
+        ensureFrozen();
+        return parents[id];
+    }
+
+    public int[] getChildren(int id) {
+        ensureFrozen();
+        return children[id];
+    }
+
+    // Node ids with every parent before its children
+    public int[] getTopologicalOrder() {
+        ensureFrozen();
+        return topologicalOrder;
+    }
+
+    // Proper ancestors of a node; callers must not modify the set
+    public BitSet getAncestors(int id) {
+        ensureFrozen();
+        return ancestors[id];
+    }
+
+    // True if ancestor is target itself or one of its ancestors
+    public boolean isAncestor(String ancestor, String target) {
+        int ancestorId = getId(ancestor);
+        int targetId = getId(target);
+        if (ancestorId < 0 || targetId < 0) {
+            return ancestor.equals(target);
         }
-        return null;
+        return ancestorId == targetId || getAncestors(targetId).get(ancestorId);
     }
 }
@@ -1,11 +1,11 @@
+import java.nio.DoubleBuffer;
 import java.util.List;
-import java.util.Map;
 
 public class BayesianNode {
     private String name;
     private List<String> outcomes;
     private List<String> given;
-    private Map<List<String>, Double> cpt; // New field for CPT
+    private DoubleBuffer probabilities; // CPT in XMLBIF order: given outcomes in order, own outcome fastest
 
     public BayesianNode(String name, List<String> outcomes, List<String> given) {
         this.name = name;
@@ -34,11 +34,13 @@ public class BayesianNode {
         this.given = given;
     }
 
-    public Map<List<String>, Double> getCPT() {
-        return cpt;
+    // Heap-backed when parsed from XML, a view of the mapped file when loaded from a snapshot.
+    // Read it with absolute gets only; it is shared by all queries.
+    public DoubleBuffer getProbabilities() {
+        return probabilities;
     }
 
-    public void setCPT(Map<List<String>, Double> cpt) {
-        this.cpt = cpt;
+    public void setProbabilities(DoubleBuffer probabilities) {
+        this.probabilities = probabilities;
     }
 }
@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+
+// Compiles a network into an ArithmeticCircuit by tracing variable elimination symbolically.
+// Every CPT entry becomes a parameter times the indicator of the node's outcome, and the elimination is run
+// over tables of circuit nodes instead of numbers: a product of two entries becomes a product node, summing a
+// variable out becomes a sum node. Nothing is observed while compiling, so the circuit is the network polynomial
+// and answers any evidence later. Identical nodes are shared, and parameters are folded at compile time: a product
+// or sum of parameters is one parameter, zeros drop out and ones vanish from products.
+public class CircuitCompiler {
+    private final BayesianNetwork network;
+
+    // Nodes under construction, in creation order, which is already children before parents
+    private byte[] kinds = new byte[1024];
+    private double[] parameters = new double[1024];
+    private int[] childStart = new int[1025];
+    private int[] children = new int[4096];
+    private int nodeCount;
+    private int childCount;
+    private final Map<NodeKey, Integer> shared = new HashMap<>();
+    private final int[] firstIndicator;
+    private final int zero;
+    private final int one;
+
+    private CircuitCompiler(BayesianNetwork network) {
+        this.network = network;
+        this.firstIndicator = new int[network.size() + 1];
+        for (int id = 0; id < network.size(); id++) {
+            for (int k = 0; k < network.getNode(id).getOutcomes().size(); k++) {
+                add(ArithmeticCircuit.INDICATOR, 0, new int[0], 0);
+            }
+            firstIndicator[id + 1] = nodeCount;
+        }
+        zero = parameter(0.0);
+        one = parameter(1.0);
+    }
+
+    // Compile an XMLBIF or snapshot network: java CircuitCompiler network.xml network.ac
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java CircuitCompiler <network.xml|network" + NetworkSnapshot.EXTENSION + "> <network"
+                    + ArithmeticCircuit.EXTENSION + ">");
+            return;
+        }
+        long start = System.nanoTime();
+        ArithmeticCircuit circuit = compile(Ex1.loadNetwork(Path.of(args[0])));
+        circuit.write(Path.of(args[1]));
+        System.err.println(String.format("%s: %s in %.1f ms", args[1], circuit, (System.nanoTime() - start) / 1e6));
+    }
+
+    public static ArithmeticCircuit compile(BayesianNetwork network) {
+        return new CircuitCompiler(network).run();
+    }
+
+    private ArithmeticCircuit run() {
+        List<Table> tables = new ArrayList<>();
+        for (int id = 0; id < network.size(); id++) {
+            tables.add(cpt(id));
+        }
+
+        // Sum out every variable, in min-fill order, from the product of the tables that mention it
+        EliminationOrdering ordering = new EliminationOrdering(network);
+        for (String name : ordering.order(EliminationOrdering.Strategy.MIN_FILL, ordering.getVariables())) {
+            int variable = network.getId(name);
+            Table bucket = null;
+            for (Iterator<Table> it = tables.iterator(); it.hasNext(); ) {
+                Table table = it.next();
+                if (table.position(variable) >= 0) {
+                    bucket = bucket == null ? table : multiply(bucket, table);
+                    it.remove();
+                }
+            }
+            if (bucket != null) {
+                tables.add(sumOut(bucket, variable));
+            }
+        }
+        int root = one;
+        for (Table table : tables) {
+            root = product(root, table.entries[0]);
+        }
+        return compact(root);
+    }
+
+    // theta(x | parents) * lambda(x) over the family, in the layout of the node's table
+    private Table cpt(int id) {
+        BayesianNode node = network.getNode(id);
+        int[] parents = network.getParents(id);
+        if (parents.length != node.getGiven().size()) {
+            throw new IllegalArgumentException("A parent of " + node.getName() + " is not in the network.");
+        }
+        int[] variables = Arrays.copyOf(parents, parents.length + 1);
+        variables[parents.length] = id;
+        Table table = new Table(variables);
+        if (node.getProbabilities().limit() != table.entries.length) {
+            throw new IllegalArgumentException("The table of " + node.getName() + " has " + node.getProbabilities().limit()
+                    + " entries, its family " + table.entries.length + " outcomes.");
+        }
+        int cardinality = node.getOutcomes().size();
+        for (int i = 0; i < table.entries.length; i++) {
+            table.entries[i] = product(parameter(node.getProbabilities().get(i)), firstIndicator[id] + i % cardinality);
+        }
+        return table;
+    }
+
+    // Product of two tables over a's variables followed by those of b's that a lacks
+    private Table multiply(Table a, Table b) {
+        int[] union = Arrays.copyOf(a.variables, a.variables.length + b.variables.length);
+        int n = a.variables.length;
+        for (int variable : b.variables) {
+            if (a.position(variable) < 0) {
+                union[n++] = variable;
+            }
+        }
+        Table result = new Table(Arrays.copyOf(union, n));
+        int[] stridesA = result.stridesOf(a);
+        int[] stridesB = result.stridesOf(b);
+        int[] counter = new int[n];
+        int indexA = 0;
+        int indexB = 0;
+        for (int position = 0; position < result.entries.length; position++) {
+            result.entries[position] = product(a.entries[indexA], b.entries[indexB]);
+            for (int d = n - 1; d >= 0; d--) {
+                indexA += stridesA[d];
+                indexB += stridesB[d];
+                if (++counter[d] < result.cardinalities[d]) {
+                    break;
+                }
+                indexA -= stridesA[d] * result.cardinalities[d];
+                indexB -= stridesB[d] * result.cardinalities[d];
+                counter[d] = 0;
+            }
+        }
+        return result;
+    }
+
+    private Table sumOut(Table table, int variable) {
+        int position = table.position(variable);
+        int[] kept = new int[table.variables.length - 1];
+        for (int i = 0, j = 0; i < table.variables.length; i++) {
+            if (i != position) {
+                kept[j++] = table.variables[i];
+            }
+        }
+        Table result = new Table(kept);
+        int cardinality = table.cardinalities[position];
+        int inner = 1;
+        for (int i = position + 1; i < table.variables.length; i++) {
+            inner *= table.cardinalities[i];
+        }
+        int[] terms = new int[cardinality];
+        for (int out = 0; out < result.entries.length; out++) {
+            int base = (out / inner) * inner * cardinality + out % inner;
+            for (int k = 0; k < cardinality; k++) {
+                terms[k] = table.entries[base + k * inner];
+            }
+            result.entries[out] = sum(terms);
+        }
+        return result;
+    }
+
+    private int parameter(double value) {
+        return add(ArithmeticCircuit.PARAMETER, value, new int[0], 0);
+    }
+
+    private int product(int a, int b) {
+        if (a == zero || b == zero) {
+            return zero;
+        }
+        if (a == one) {
+            return b;
+        }
+        if (b == one) {
+            return a;
+        }
+        if (kinds[a] == ArithmeticCircuit.PARAMETER && kinds[b] == ArithmeticCircuit.PARAMETER) {
+            return parameter(parameters[a] * parameters[b]);
+        }
+        return add(ArithmeticCircuit.PRODUCT, 0, a < b ? new int[]{a, b} : new int[]{b, a}, 2);
+    }
+
+    private int sum(int[] terms) {
+        int[] kept = new int[terms.length];
+        int n = 0;
+        boolean allParameters = true;
+        double constant = 0;
+        for (int term : terms) {
+            if (term != zero) {
+                kept[n++] = term;
+                allParameters &= kinds[term] == ArithmeticCircuit.PARAMETER;
+                constant += parameters[term];
+            }
+        }
+        if (n == 0) {
+            return zero;
+        }
+        if (n == 1) {
+            return kept[0];
+        }
+        if (allParameters) {
+            return parameter(constant);
+        }
+        Arrays.sort(kept, 0, n);
+        return add(ArithmeticCircuit.SUM, 0, kept, n);
+    }
+
+    // The existing node with these contents, or a new one
+    private int add(byte kind, double parameter, int[] nodeChildren, int length) {
+        NodeKey key = kind == ArithmeticCircuit.INDICATOR ? null : new NodeKey(kind, parameter, Arrays.copyOf(nodeChildren, length));
+        if (key != null) {
+            Integer existing = shared.get(key);
+            if (existing != null) {
+                return existing;
+            }
+        }
+        if (nodeCount == kinds.length) {
+            kinds = Arrays.copyOf(kinds, 2 * nodeCount);
+            parameters = Arrays.copyOf(parameters, 2 * nodeCount);
+            childStart = Arrays.copyOf(childStart, 2 * nodeCount + 1);
+        }
+        if (childCount + length > children.length) {
+            children = Arrays.copyOf(children, Math.max(2 * children.length, childCount + length));
+        }
+        kinds[nodeCount] = kind;
+        parameters[nodeCount] = parameter;
+        System.arraycopy(nodeChildren, 0, children, childCount, length);
+        childCount += length;
+        childStart[nodeCount + 1] = childCount;
+        if (key != null) {
+            shared.put(key, nodeCount);
+        }
+        return nodeCount++;
+    }
+
+    // Drop the nodes folding left unreachable from the root; the indicators keep their places at the front
+    private ArithmeticCircuit compact(int root) {
+        int indicators = firstIndicator[network.size()];
+        boolean[] reachable = new boolean[nodeCount];
+        reachable[root] = true;
+        for (int node = nodeCount - 1; node >= 0; node--) {
+            if (reachable[node]) {
+                for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+                    reachable[children[c]] = true;
+                }
+            }
+        }
+        int[] renumbered = new int[nodeCount];
+        int count = 0;
+        int edges = 0;
+        for (int node = 0; node < nodeCount; node++) {
+            if (node < indicators || reachable[node]) {
+                renumbered[node] = count++;
+                edges += childStart[node + 1] - childStart[node];
+            }
+        }
+        byte[] outKinds = new byte[count];
+        double[] outParameters = new double[count];
+        int[] outStart = new int[count + 1];
+        int[] outChildren = new int[edges];
+        int[] order = new int[count];
+        for (int node = 0; node < nodeCount; node++) {
+            if (node < indicators || reachable[node]) {
+                order[renumbered[node]] = node;
+            }
+        }
+        int edge = 0;
+        for (int i = 0; i < count; i++) {
+            int node = order[i];
+            outKinds[i] = kinds[node];
+            outParameters[i] = parameters[node];
+            for (int c = childStart[node]; c < childStart[node + 1]; c++) {
+                outChildren[edge++] = renumbered[children[c]];
+            }
+            outStart[i + 1] = edge;
+        }
+
+        String[] names = new String[network.size()];
+        String[][] outcomes = new String[network.size()][];
+        for (int id = 0; id < network.size(); id++) {
+            names[id] = network.getNode(id).getName();
+            outcomes[id] = network.getNode(id).getOutcomes().toArray(new String[0]);
+        }
+        return new ArithmeticCircuit(names, outcomes, ArithmeticCircuit.fingerprint(network), outKinds, outParameters,
+                outStart, outChildren, renumbered[root]);
+    }
+
+    // A table of circuit nodes over network variables, last variable fastest
+    private final class Table {
+        final int[] variables;
+        final int[] cardinalities;
+        final int[] entries;
+
+        Table(int[] variables) {
+            this.variables = variables;
+            this.cardinalities = new int[variables.length];
+            int size = 1;
+            for (int i = 0; i < variables.length; i++) {
+                cardinalities[i] = network.getNode(variables[i]).getOutcomes().size();
+                size = Math.multiplyExact(size, cardinalities[i]);
+            }
+            this.entries = new int[size];
+        }
+
+        int position(int variable) {
+            for (int i = 0; i < variables.length; i++) {
+                if (variables[i] == variable) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        // Strides of another table along this table's variables, 0 for the variables it lacks
+        int[] stridesOf(Table other) {
+            int[] strides = new int[variables.length];
+            int stride = 1;
+            for (int i = other.variables.length - 1; i >= 0; i--) {
+                strides[position(other.variables[i])] = stride;
+                stride *= other.cardinalities[i];
+            }
+            return strides;
+        }
+    }
+
+    private static final class NodeKey {
+        private final byte kind;
+        private final long parameter;
+        private final int[] children;
+        private final int hash;
+
+        NodeKey(byte kind, double parameter, int[] children) {
+            this.kind = kind;
+            this.parameter = Double.doubleToLongBits(parameter);
+            this.children = children;
+            this.hash = 31 * (31 * kind + Long.hashCode(this.parameter)) + Arrays.hashCode(children);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof NodeKey)) {
+                return false;
+            }
+            NodeKey other = (NodeKey) o;
+            return kind == other.kind && parameter == other.parameter && Arrays.equals(children, other.children);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+// Answers queries from an arithmetic circuit of the network, either compiled when the engine is built or loaded
+// from a file written by CircuitCompiler (-Dbn.circuit=network.ac), so a query costs a pass or two over flat arrays
+// instead of building and joining factors. P(query | evidence) is two upward passes, one with the query outcomes
+// observed as well; a single-variable posterior is one upward and one downward pass.
+// Every thread evaluates through its own evaluator; a change to the network's tables recompiles the circuit.
+public class CircuitEngine implements InferenceEngine {
+    private final BayesianNetwork network;
+    private volatile ArithmeticCircuit circuit;
+    private volatile long circuitVersion;
+    private final ThreadLocal<ArithmeticCircuit.Evaluator> evaluators = new ThreadLocal<>();
+
+    private final LongAdder upwardPasses = new LongAdder();
+    private final LongAdder downwardPasses = new LongAdder();
+    private final LongAdder compilations = new LongAdder();
+
+    public CircuitEngine(BayesianNetwork network, ArithmeticCircuit circuit) {
+        if (!circuit.matches(network)) {
+            throw new IllegalArgumentException("The circuit was compiled from a network with other variables or outcomes.");
+        }
+        // A circuit file from before the tables changed would answer from the old ones
+        if (!circuit.matchesTables(network)) {
+            throw new IllegalArgumentException("The circuit was compiled from other parents or tables than the network's;"
+                    + " recompile it with CircuitCompiler.");
+        }
+        this.network = network;
+        this.circuit = circuit;
+        this.circuitVersion = network.getVersion();
+    }
+
+    // The circuit file named by the options, or a fresh compilation
+    public static CircuitEngine create(BayesianNetwork network, InferenceOptions options) {
+        if (options.getCircuitFile() == null) {
+            return new CircuitEngine(network, CircuitCompiler.compile(network));
+        }
+        try {
+            return new CircuitEngine(network, ArithmeticCircuit.load(Path.of(options.getCircuitFile())));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public ArithmeticCircuit getCircuit() {
+        return circuit;
+    }
+
+    @Override
+    public QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+        InferenceEvents.Query event = new InferenceEvents.Query();
+        event.begin();
+        long start = System.nanoTime();
+        // A query variable the network does not have rejects the query, as in the other exact engines
+        for (String variable : queryVariables.keySet()) {
+            if (network.getId(variable) < 0) {
+                throw new IllegalStateException("Unknown variable: " + variable);
+            }
+        }
+        ArithmeticCircuit.Evaluator evaluator = evaluator();
+        double evidenceProbability = evaluate(evaluator, evidence);
+        int passes = 1;
+
+        // Observe the query outcomes too; one that contradicts the evidence has probability zero.
+        // Evidence of probability zero gives NaN, as in the other exact engines.
+        boolean contradicted = false;
+        boolean observedMore = false;
+        for (Map.Entry<String, String> entry : queryVariables.entrySet()) {
+            String observed = evidence.get(entry.getKey());
+            if (observed != null) {
+                contradicted |= !observed.equals(entry.getValue());
+            } else {
+                int variable = id(entry.getKey());
+                evaluator.observe(variable, network.getNode(variable).getOutcomes().indexOf(entry.getValue()));
+                observedMore = true;
+            }
+        }
+        double joint = contradicted ? 0 : evidenceProbability;
+        if (!contradicted && observedMore) {
+            joint = evaluator.evaluate();
+            passes++;
+        }
+        upwardPasses.add(passes);
+        ArithmeticCircuit compiled = evaluator.getCircuit();
+        QueryResult result = new QueryResult(joint / evidenceProbability, passes * compiled.getUpwardAdditions(),
+                passes * compiled.getUpwardMultiplications());
+
+        InferenceMetrics.query(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.engine = "ac";
+            event.query = queryVariables + " | " + evidence;
+            event.evidence = evidence.size();
+            event.additions = result.getAdditionCount();
+            event.multiplications = result.getMultiplicationCount();
+            event.commit();
+        }
+        return result;
+    }
+
+    // One variable: every outcome from the derivatives of a single upward and downward pass.
+    // Several: one more upward pass per combination of their outcomes.
+    @Override
+    public Posterior posterior(List<String> queryVariables, Map<String, String> evidence) {
+        Posterior.checkQuery(queryVariables, evidence);
+        ArithmeticCircuit.Evaluator evaluator = evaluator();
+        ArithmeticCircuit compiled = evaluator.getCircuit();
+        double evidenceProbability = evaluate(evaluator, evidence);
+        if (evidenceProbability == 0) {
+            throw new IllegalStateException("The evidence has probability zero.");
+        }
+
+        Factor distribution = newFactor(queryVariables);
+        double[] values = distribution.getValues();
+        int[] ids = distribution.getIds();
+        int additions = compiled.getUpwardAdditions();
+        int multiplications = compiled.getUpwardMultiplications();
+        if (ids.length == 1) {
+            evaluator.differentiate();
+            downwardPasses.increment();
+            for (int k = 0; k < values.length; k++) {
+                values[k] = evaluator.getMarginal(ids[0], k);
+            }
+            additions += compiled.getDownwardAdditions();
+            multiplications += compiled.getDownwardMultiplications();
+        } else {
+            int[] cardinalities = distribution.getCardinalities();
+            int[] counter = new int[ids.length];
+            for (int position = 0; position < values.length; position++) {
+                for (int d = 0; d < ids.length; d++) {
+                    evaluator.observe(ids[d], counter[d]);
+                }
+                values[position] = evaluator.evaluate() / evidenceProbability;
+                additions += compiled.getUpwardAdditions();
+                multiplications += compiled.getUpwardMultiplications();
+                for (int d = ids.length - 1; d >= 0 && ++counter[d] == cardinalities[d]; d--) {
+                    counter[d] = 0;
+                }
+            }
+            upwardPasses.add(values.length);
+        }
+        upwardPasses.increment();
+        return new Posterior(distribution, evidenceProbability, additions, multiplications);
+    }
+
+    @Override
+    public void reportStatistics(PrintStream out) {
+        out.println(circuit + "; " + upwardPasses.sum() + " upward and " + downwardPasses.sum() + " downward passes, "
+                + compilations.sum() + " recompilations");
+    }
+
+    // Set the evidence and run the upward pass, returning P(evidence); evidence on variables the network does not
+    // have is ignored, as in the other exact engines
+    private double evaluate(ArithmeticCircuit.Evaluator evaluator, Map<String, String> evidence) {
+        evaluator.clearEvidence();
+        for (Map.Entry<String, String> entry : evidence.entrySet()) {
+            int variable = network.getId(entry.getKey());
+            if (variable < 0) {
+                continue;
+            }
+            evaluator.observe(variable, network.getNode(variable).getOutcomes().indexOf(entry.getValue()));
+        }
+        return evaluator.evaluate();
+    }
+
+    // This thread's evaluator for the current circuit, recompiling first if the network's tables changed
+    private ArithmeticCircuit.Evaluator evaluator() {
+        if (network.getVersion() != circuitVersion) {
+            synchronized (this) {
+                if (network.getVersion() != circuitVersion) {
+                    long version = network.getVersion();
+                    circuit = CircuitCompiler.compile(network);
+                    circuitVersion = version;
+                    compilations.increment();
+                }
+            }
+        }
+        ArithmeticCircuit current = circuit;
+        ArithmeticCircuit.Evaluator evaluator = evaluators.get();
+        if (evaluator == null || evaluator.getCircuit() != current) {
+            evaluator = current.newEvaluator();
+            evaluators.set(evaluator);
+        }
+        return evaluator;
+    }
+
+    private int id(String variable) {
+        int id = network.getId(variable);
+        if (id < 0) {
+            throw new IllegalArgumentException("Unknown variable: " + variable);
+        }
+        return id;
+    }
+
+    private Factor newFactor(List<String> variables) {
+        int[] ids = new int[variables.size()];
+        List<List<String>> domains = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = id(variables.get(i));
+            domains.add(network.getNode(ids[i]).getOutcomes());
+        }
+        return new Factor(variables, ids, domains);
+    }
+}
@@ -0,0 +1,191 @@
+import java.util.*;
+
+// Chooses the order in which VariableElimination sums out the hidden variables.
+// Works on the interaction graph of the factors: two variables are neighbours when they share a factor,
+// which for CPT factors is the moralized network with the evidence variables removed.
+public class EliminationOrdering {
+
+    public enum Strategy {
+        GIVEN, MIN_DEGREE, MIN_FILL, WEIGHTED_MIN_FILL;
+
+        // Accepts names like "min-fill" or "WEIGHTED_MIN_FILL"
+        public static Strategy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private final Map<String, Set<String>> graph;
+    private final Map<String, Integer> cardinalities;
+
+    public EliminationOrdering(Collection<Factor> factors) {
+        this.graph = new LinkedHashMap<>();
+        this.cardinalities = new HashMap<>();
+        for (Factor factor : factors) {
+            List<String> variables = factor.getVariables();
+            for (int i = 0; i < variables.size(); i++) {
+                String variable = variables.get(i);
+                cardinalities.put(variable, factor.getCardinalities()[i]);
+                Set<String> neighbours = graph.computeIfAbsent(variable, v -> new LinkedHashSet<>());
+                for (String other : variables) {
+                    if (!other.equals(variable)) {
+                        neighbours.add(other);
+                    }
+                }
+            }
+        }
+    }
+
+    // Moralized graph of a whole network: every node is linked to its parents and the parents to each other
+    public EliminationOrdering(BayesianNetwork network) {
+        this.graph = new LinkedHashMap<>();
+        this.cardinalities = new HashMap<>();
+        for (BayesianNode node : network.getNodes()) {
+            cardinalities.put(node.getName(), node.getOutcomes().size());
+            graph.computeIfAbsent(node.getName(), v -> new LinkedHashSet<>());
+        }
+        for (BayesianNode node : network.getNodes()) {
+            List<String> family = new ArrayList<>(node.getGiven());
+            family.add(node.getName());
+            for (String variable : family) {
+                for (String other : family) {
+                    if (!other.equals(variable)) {
+                        graph.get(variable).add(other);
+                    }
+                }
+            }
+        }
+    }
+
+    // Order the given variables with a strategy; ties keep their position in the given order
+    public List<String> order(Strategy strategy, List<String> variables) {
+        if (strategy == Strategy.GIVEN) {
+            return new ArrayList<>(variables);
+        }
+        Map<String, Set<String>> current = copyGraph();
+        List<String> remaining = new ArrayList<>(variables);
+        List<String> order = new ArrayList<>();
+        while (!remaining.isEmpty()) {
+            String best = null;
+            long bestScore = Long.MAX_VALUE;
+            for (String variable : remaining) {
+                long score = score(strategy, current, variable);
+                if (score < bestScore) {
+                    best = variable;
+                    bestScore = score;
+                }
+            }
+            remaining.remove(best);
+            order.add(best);
+            eliminate(current, best);
+        }
+        return order;
+    }
+
+    // Largest table built while eliminating in this order, including the final join of what is left
+    public long maxFactorSize(List<String> order) {
+        Map<String, Set<String>> current = copyGraph();
+        long max = 1;
+        for (String variable : order) {
+            Set<String> neighbours = current.get(variable);
+            if (neighbours == null) {
+                continue; // No factor mentions it
+            }
+            long size = cardinality(variable);
+            for (String neighbour : neighbours) {
+                size = saturatedMultiply(size, cardinality(neighbour));
+            }
+            max = Math.max(max, size);
+            eliminate(current, variable);
+        }
+
+        long rest = 1;
+        for (String variable : current.keySet()) {
+            rest = saturatedMultiply(rest, cardinality(variable));
+        }
+        return Math.max(max, rest);
+    }
+
+    // Maximal cliques of the graph triangulated by eliminating every variable in this order
+    public List<Set<String>> eliminationCliques(List<String> order) {
+        Map<String, Set<String>> current = copyGraph();
+        List<Set<String>> cliques = new ArrayList<>();
+        for (String variable : order) {
+            Set<String> neighbours = current.get(variable);
+            if (neighbours == null) {
+                continue;
+            }
+            Set<String> clique = new LinkedHashSet<>(neighbours);
+            clique.add(variable);
+            // Later cliques never contain earlier ones, which hold an already eliminated variable
+            if (cliques.stream().noneMatch(c -> c.containsAll(clique))) {
+                cliques.add(clique);
+            }
+            eliminate(current, variable);
+        }
+        return cliques;
+    }
+
+    // All variables of the graph, in the order they were first seen
+    public List<String> getVariables() {
+        return new ArrayList<>(graph.keySet());
+    }
+
+    private long score(Strategy strategy, Map<String, Set<String>> current, String variable) {
+        Set<String> neighbours = current.get(variable);
+        if (neighbours == null) {
+            return 0;
+        }
+        if (strategy == Strategy.MIN_DEGREE) {
+            return neighbours.size();
+        }
+
+        // Count (or weigh) the edges that eliminating the variable would add between its neighbours
+        long fill = 0;
+        List<String> list = new ArrayList<>(neighbours);
+        for (int i = 0; i < list.size(); i++) {
+            for (int j = i + 1; j < list.size(); j++) {
+                if (!current.get(list.get(i)).contains(list.get(j))) {
+                    fill += strategy == Strategy.WEIGHTED_MIN_FILL
+                            ? (long) cardinality(list.get(i)) * cardinality(list.get(j))
+                            : 1;
+                }
+            }
+        }
+        return fill;
+    }
+
+    // Remove a variable and connect all of its neighbours, as summing it out does to the factor scopes
+    private static void eliminate(Map<String, Set<String>> current, String variable) {
+        Set<String> neighbours = current.remove(variable);
+        if (neighbours == null) {
+            return;
+        }
+        for (String neighbour : neighbours) {
+            Set<String> adjacent = current.get(neighbour);
+            adjacent.remove(variable);
+            for (String other : neighbours) {
+                if (!other.equals(neighbour)) {
+                    adjacent.add(other);
+                }
+            }
+        }
+    }
+
+    private Map<String, Set<String>> copyGraph() {
+        Map<String, Set<String>> copy = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> entry : graph.entrySet()) {
+            copy.put(entry.getKey(), new LinkedHashSet<>(entry.getValue()));
+        }
+        return copy;
+    }
+
+    private int cardinality(String variable) {
+        return cardinalities.getOrDefault(variable, 1);
+    }
+
+    private static long saturatedMultiply(long a, long b) {
+        long high = Math.multiplyHigh(a, b);
+        long low = a * b;
+        return high != 0 || low < 0 ? Long.MAX_VALUE : low;
+    }
+}
@@ -1,140 +1,231 @@
 import java.io.*;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Ex1 {
+    // P(...) queries handed to the batch planner at once
+    private static final int BATCH_WINDOW = 1 << 16;
+
+    private static InferenceOptions options;
+
     public static void main(String[] args) {
+        try {
+            options = InferenceOptions.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+
         // Read input file and parse content
         try (BufferedReader br = new BufferedReader(new FileReader("src/input.txt"));
              BufferedWriter bw = new BufferedWriter(new FileWriter("src/output.txt"))) {
 
             // Read the name of the XML file
             String xmlFileName = br.readLine().trim();
-            BayesianNetwork network = XMLParser.parseXML("src/" + xmlFileName);
+            BayesianNetwork network = loadNetwork(Path.of("src/" + xmlFileName));
+            InferenceEngine engine = InferenceEngine.create(network, options);
+            BayesBall bayesBall = new BayesBall(network);
+            QueryTokenizer tokenizer = new QueryTokenizer(network);
+
+            BatchPlanner planner = null;
+            QueryPipeline pipeline = null;
+            if (options.isBatch() && options.getEngine() == InferenceOptions.Engine.VARIABLE_ELIMINATION) {
+                planner = new BatchPlanner(network, options);
+                processInBatch(br, bw, tokenizer, planner, bayesBall);
+            } else if (options.isPipeline()) {
+                pipeline = new QueryPipeline(tokenizer, engine, bayesBall, options);
+                pipeline.run(br, bw);
+            } else if (options.getThreads() > 1) {
+                processInParallel(br, bw, tokenizer, engine, bayesBall);
+            } else {
+                processSequentially(br, bw, tokenizer, engine, bayesBall);
+            }
+            if (options.isReportStatistics()) {
+                engine.reportStatistics(System.err);
+                if (planner != null) {
+                    planner.reportStatistics(System.err);
+                }
+                if (pipeline != null) {
+                    pipeline.reportStatistics(System.err);
+                }
+                System.err.println(InferenceMetrics.summary());
+            }
+        } catch (XMLParser.ParseException e) {
+            System.err.println("Cannot load network: " + e.getMessage());
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // A snapshot if the name ends with NetworkSnapshot.EXTENSION, XMLBIF otherwise
+    static BayesianNetwork loadNetwork(Path file) throws IOException {
+        return file.toString().endsWith(NetworkSnapshot.EXTENSION)
+                ? NetworkSnapshot.load(file)
+                : XMLParser.parseXML(file.toString());
+    }
+
+    private static void processSequentially(BufferedReader br, BufferedWriter bw, QueryTokenizer tokenizer, InferenceEngine engine,
+                                            BayesBall bayesBall) throws IOException {
+        // Process the rest of the input
+        String line;
+        boolean isBBQuery = true;
+        while ((line = br.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue; // Skip empty lines
+            }
 
-            // Process the rest of the input
+            if (line.startsWith("P(")) {
+                isBBQuery = false; // Switch to VE queries
+            }
+
+            if (isBBQuery) {
+                // Process BB Query
+                writeLine(bw, processBBQuery(line, tokenizer, bayesBall));
+            } else {
+                // Process VE Query
+                writeLine(bw, processVEQuery(line, tokenizer, engine));
+            }
+        }
+    }
+
+    // Answer the queries on a pool while writing the answers in input order.
+    // At most a fixed window of answers is pending, so memory does not grow with the input.
+    private static void processInParallel(BufferedReader br, BufferedWriter bw, QueryTokenizer tokenizer, InferenceEngine engine,
+                                          BayesBall bayesBall) throws IOException, InterruptedException, ExecutionException {
+        ExecutorService executor = options.isVirtualThreads()
+                ? Executors.newVirtualThreadPerTaskExecutor()
+                : new ForkJoinPool(options.getThreads());
+        int window = options.getThreads() * 64;
+        Deque<Future<String>> pending = new ArrayDeque<>();
+        try {
             String line;
             boolean isBBQuery = true;
             while ((line = br.readLine()) != null) {
                 if (line.trim().isEmpty()) {
                     continue; // Skip empty lines
                 }
-
                 if (line.startsWith("P(")) {
                     isBBQuery = false; // Switch to VE queries
                 }
 
-                if (isBBQuery) {
-                    // Process BB Query
-                    processBBQuery(line, network, bw);
-                } else {
-                    // Process VE Query
-                    processVEQuery(line, network, bw);
+                String query = line;
+                pending.add(isBBQuery
+                        ? executor.submit(() -> processBBQuery(query, tokenizer, bayesBall))
+                        : executor.submit(() -> processVEQuery(query, tokenizer, engine)));
+                if (pending.size() >= window) {
+                    writeLine(bw, pending.poll().get());
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private static Set<String> parseEvidence(Set<String> evidenceSet) {
-        Set<String> evidenceNodes = new HashSet<>();
-        for (String ev : evidenceSet) {
-            String[] parts = ev.split("=");
-            if (parts.length == 2) {
-                evidenceNodes.add(parts[0].trim());
+            while (!pending.isEmpty()) {
+                writeLine(bw, pending.poll().get());
             }
+        } finally {
+            executor.shutdownNow();
         }
-        return evidenceNodes;
     }
 
-
-    private static void processBBQuery(String query, BayesianNetwork network, BufferedWriter bw) {
+    // Answer the BB queries as they come and the P(...) queries through the planner, which groups them by evidence so
+    // they share their factors; the answers are still written in input order.
+    // The planner gets BATCH_WINDOW queries at a time, so the memory held does not grow with the input.
+    private static void processInBatch(BufferedReader br, BufferedWriter bw, QueryTokenizer tokenizer, BatchPlanner planner,
+                                       BayesBall bayesBall) throws IOException, InterruptedException, ExecutionException {
+        List<String> answers = new ArrayList<>();
+        List<BatchPlanner.Query> queries = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>();
+        ExecutorService executor = options.getThreads() <= 1 ? null
+                : options.isVirtualThreads() ? Executors.newVirtualThreadPerTaskExecutor() : new ForkJoinPool(options.getThreads());
         try {
-            String[] parts = query.split("\\|");
-            String path = parts[0].trim();
-            String[] pathNodes = path.split("-");
-            String startNode = pathNodes[0].trim();
-            String endNode = pathNodes[1].trim();
-
-            Set<String> evidence = new HashSet<>();
-            if (parts.length > 1 && !parts[1].trim().isEmpty()) {
-                String[] evidenceParts = parts[1].split(",");
-                for (String ev : evidenceParts) {
-                    evidence.add(ev.trim());
+            String line;
+            boolean isBBQuery = true;
+            while ((line = br.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue; // Skip empty lines
+                }
+                if (line.startsWith("P(")) {
+                    isBBQuery = false; // Switch to VE queries
+                }
+                if (isBBQuery) {
+                    answers.add(processBBQuery(line, tokenizer, bayesBall));
+                } else {
+                    positions.add(answers.size());
+                    answers.add(null);
+                    queries.add(tokenizer.parseProbability(line));
+                    if (queries.size() == BATCH_WINDOW) {
+                        writeWindow(bw, planner, executor, queries, positions, answers);
+                    }
                 }
             }
+            writeWindow(bw, planner, executor, queries, positions, answers);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
 
-            BayesBall bayesBall = new BayesBall(network);
-            boolean independent = bayesBall.areIndependents(startNode, endNode, parseEvidence(evidence));
+    // Answer the planned queries and write every pending answer
+    private static void writeWindow(BufferedWriter bw, BatchPlanner planner, ExecutorService executor,
+                                    List<BatchPlanner.Query> queries, List<Integer> positions, List<String> answers)
+            throws IOException, InterruptedException, ExecutionException {
+        QueryResult[] results = planner.answer(queries, executor);
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] != null) {
+                reportEstimate(queries.get(i).getLine(), results[i]);
+            }
+            answers.set(positions.get(i), results[i] == null ? "rejected" : results[i].toString());
+        }
+        for (String answer : answers) {
+            writeLine(bw, answer);
+        }
+        queries.clear();
+        positions.clear();
+        answers.clear();
+    }
 
-            bw.write(independent ? "yes" : "no");
-            bw.newLine();
-        } catch (IOException e) {
-            e.printStackTrace();
+    // Error bar of an estimate on stderr; the output line keeps its usual format
+    private static void reportEstimate(String query, QueryResult result) {
+        if (result instanceof SampledResult) {
+            SampledResult sampled = (SampledResult) result;
+            System.err.println(String.format("%s: %.5f +- %.5f from %d samples", query, sampled.getProbability(),
+                    sampled.getStandardError(), sampled.getSampleCount()));
         }
     }
 
-    private static void processVEQuery(String query, BayesianNetwork network, BufferedWriter bw) {
-        try {
-            // Example input: P(M=Y|N=T,S=good,F=nice) A-E
-            String[] parts = query.split("\\)");
-
-            // Handle case without hidden variables
-            String path = parts.length == 2 ? parts[1].trim() : "";
-
-            // Extract the whole_query part and the path part
-            String whole_query = parts[0].substring(2); // Remove "P("
-            String[] queryEvidenceParts = whole_query.split("\\|");
-            String queryVarPart = queryEvidenceParts[0].trim();
-
-            // Extract the query variable and its outcome
-            String[] queryVariableParts = queryVarPart.split(",");
-            Map<String, String> queryVariables = new HashMap<>();
-            for (String qv : queryVariableParts) {
-                String[] qvParts = qv.split("=");
-                if (qvParts.length == 2) {
-                    queryVariables.put(qvParts[0].trim(), qvParts[1].trim());
-                }
-            }
+    private static void writeLine(BufferedWriter bw, String answer) throws IOException {
+        bw.write(answer);
+        bw.newLine();
+    }
 
-            // Extract evidence if it exists
-            Map<String, String> evidence = new HashMap<>();
-            if (queryEvidenceParts.length > 1) {
-                String evidencePart = queryEvidenceParts[1].trim();
-                String[] evidenceVariables = evidencePart.split(",");
-                for (String ev : evidenceVariables) {
-                    String[] evParts = ev.split("=");
-                    if (evParts.length == 2) {
-                        evidence.put(evParts[0].trim(), evParts[1].trim());
-                    }
-                }
-            }
+    static String processBBQuery(String query, QueryTokenizer tokenizer, BayesBall bayesBall) {
+        return answerIndependence(tokenizer.parseIndependence(query), bayesBall);
+    }
 
-            List<String> hiddenVariables = new ArrayList<>();
-            if (!path.isEmpty()) {
-                String[] pathNodes = path.split("-");
-                for (String node : pathNodes) {
-                    hiddenVariables.add(node.trim());
-                }
-            }
+    static String answerIndependence(QueryTokenizer.IndependenceQuery query, BayesBall bayesBall) {
+        boolean independent = bayesBall.areIndependents(query.getStart(), query.getEnd(), query.getEvidence());
+        return independent ? "yes" : "no";
+    }
 
-            // Identify hidden variables
-            for (BayesianNode node : network.getNodes()) {
-                String nodeName = node.getName();
-                if (!evidence.containsKey(nodeName) && !queryVariables.containsKey(nodeName) && !hiddenVariables.contains(nodeName)) {
-                    hiddenVariables.add(nodeName);
-                }
-            }
+    static String processVEQuery(String query, QueryTokenizer tokenizer, InferenceEngine engine) {
+        // Example input: P(M=Y|N=T,S=good,F=nice) A-E
+        return answerProbability(tokenizer.parseProbability(query), engine);
+    }
 
-            // Run the variable elimination algorithm
-            VariableElimination ve = new VariableElimination(network, evidence, queryVariables, hiddenVariables);
-            double result = ve.run();
+    static String answerProbability(BatchPlanner.Query parsed, InferenceEngine engine) {
+        Map<String, String> queryVariables = new HashMap<>(parsed.getQueryVariables());
+        Map<String, String> evidence = new HashMap<>(parsed.getEvidence());
+        List<String> hiddenVariables = new ArrayList<>(parsed.getHiddenVariables());
+        String query = parsed.getLine();
 
-            // Write the result to the output file
-            bw.write(String.format("%.5f,%d,%d", result, ve.getAdditionCount(), ve.getMultiplicationCount()));
-            bw.newLine();
-        } catch (IOException e) {
-            e.printStackTrace();
+        try {
+            // Run the selected inference engine
+            QueryResult result = engine.query(queryVariables, evidence, hiddenVariables);
+            reportEstimate(query, result);
+            return result.toString();
+        } catch (IllegalStateException e) {
+            // Rejected before any factor was multiplied
+            System.err.println(query + ": " + e.getMessage());
+            return "rejected";
         }
     }
 }
@@ -1,45 +1,202 @@
 import java.util.*;
 
 public class Factor implements Comparable<Factor> {
-    private List<String> variables;
-    private Map<List<String>, Double> table;
+    private final List<String> variables;
+    private final int[] ids;
+    private final List<List<String>> domains;
+    private final int[] cardinalities;
+    private final int[] strides;
+    private final double[] values;
+    private final int offset;
+    private final boolean view;
+    private final int tableSize;
+    private int exponent;
 
-    public Factor(List<String> variables) {
-        this.variables = new ArrayList<>(variables);
-        this.table = new LinkedHashMap<>(); // Use LinkedHashMap to maintain order
+    // Create a zero-filled factor; the last variable varies fastest (same order as the XML tables)
+    public Factor(List<String> variables, int[] ids, List<List<String>> domains) {
+        this.variables = Collections.unmodifiableList(new ArrayList<>(variables));
+        this.ids = ids.clone();
+        this.domains = Collections.unmodifiableList(new ArrayList<>(domains));
+        this.cardinalities = new int[ids.length];
+        this.strides = new int[ids.length];
+        int size = 1;
+        for (int i = ids.length - 1; i >= 0; i--) {
+            cardinalities[i] = domains.get(i).size();
+            strides[i] = size;
+            size = Math.multiplyExact(size, cardinalities[i]);
+        }
+        this.values = new double[size];
+        this.offset = 0;
+        this.view = false;
+        this.tableSize = size;
+    }
+
+    private Factor(List<String> variables, int[] ids, List<List<String>> domains, double[] storage, int offset, int[] strides) {
+        this.variables = Collections.unmodifiableList(new ArrayList<>(variables));
+        this.ids = ids.clone();
+        this.domains = Collections.unmodifiableList(new ArrayList<>(domains));
+        this.cardinalities = new int[ids.length];
+        int size = 1;
+        for (int i = 0; i < ids.length; i++) {
+            cardinalities[i] = domains.get(i).size();
+            size = Math.multiplyExact(size, cardinalities[i]);
+        }
+        this.strides = strides.clone();
+        this.values = storage;
+        this.offset = offset;
+        this.view = true;
+        this.tableSize = size;
+    }
+
+    // Read-only factor over someone else's storage, such as a CPT with its evidence fixed: entry (x1..xn) is
+    // storage[offset + x1 * strides[1] + ... + xn * strides[n]]. Nothing is copied until it is materialized.
+    public static Factor view(List<String> variables, int[] ids, List<List<String>> domains, double[] storage, int offset,
+                              int[] strides) {
+        return new Factor(variables, ids, domains, storage, offset, strides);
+    }
+
+    // Independent copy with the same variables and table, for callers that modify a shared factor
+    public Factor copy() {
+        if (view) {
+            return materialize();
+        }
+        Factor copy = new Factor(variables, ids, domains);
+        System.arraycopy(values, 0, copy.values, 0, values.length);
+        copy.exponent = exponent;
+        return copy;
+    }
+
+    // This factor with a contiguous table of its own: itself unless it is a view
+    public Factor materialize() {
+        if (!view) {
+            return this;
+        }
+        Factor copy = new Factor(variables, ids, domains);
+        FactorKernels.gather(values, offset, strides, cardinalities, copy.values);
+        copy.exponent = exponent;
+        return copy;
     }
 
     // Set the probability value for a given combination of variable outcomes
-    public void setProbability(List<String> outcomes, Double probability) {
-        table.put(new ArrayList<>(outcomes), probability);
+    public void setProbability(List<String> outcomes, double probability) {
+        checkOwned();
+        int index = indexOf(outcomes);
+        if (index < 0) {
+            throw new IllegalArgumentException("No matching entry for outcomes: " + outcomes);
+        }
+        values[index] = probability;
     }
 
     // Get the probability value for a given combination of variable outcomes
     public Double getProbability(List<String> outcomes) {
-        Double probability = table.get(outcomes);
-        if (probability == null) {
+        int index = indexOf(outcomes);
+        if (index < 0) {
             System.err.println("No matching entry for outcomes: " + outcomes);
             return 0.0;
         }
-        return probability;
+        return values[index];
+    }
+
+    // Mixed-radix position of an outcome combination, or -1 if it is not part of the table
+    private int indexOf(List<String> outcomes) {
+        if (outcomes.size() != ids.length) {
+            return -1;
+        }
+        int index = offset;
+        for (int i = 0; i < ids.length; i++) {
+            int outcome = domains.get(i).indexOf(outcomes.get(i));
+            if (outcome < 0) {
+                return -1;
+            }
+            index += outcome * strides[i];
+        }
+        return index;
     }
 
+    // Position of a variable id in this factor, or -1
+    public int indexOfId(int id) {
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] == id) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Strides of this factor laid out along another variable order (0 for variables it does not contain)
+    public int[] stridesAlong(int[] otherIds) {
+        int[] aligned = new int[otherIds.length];
+        for (int i = 0; i < otherIds.length; i++) {
+            int index = indexOfId(otherIds[i]);
+            if (index >= 0) {
+                aligned[i] = strides[index];
+            }
+        }
+        return aligned;
+    }
 
-    // Getters for variables and table
+    // Getters for the variables and the flat table
     public List<String> getVariables() {
         return variables;
     }
 
-    public Map<List<String>, Double> getTable() {
-        return table;
+    public int[] getIds() {
+        return ids;
+    }
+
+    public List<List<String>> getDomains() {
+        return domains;
+    }
+
+    public int[] getCardinalities() {
+        return cardinalities;
+    }
+
+    // Steps through getStorage() per outcome of each variable; the canonical layout unless this is a view
+    public int[] getStrides() {
+        return strides;
+    }
+
+    // The contiguous table, last variable fastest; a view has none, so materialize it first
+    public double[] getValues() {
+        checkOwned();
+        return values;
+    }
+
+    // Array the entries are read from, starting at getOffset(); kernels read views through these without copying
+    public double[] getStorage() {
+        return values;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public boolean isView() {
+        return view;
+    }
+
+    private void checkOwned() {
+        if (view) {
+            throw new UnsupportedOperationException("A factor view has no table of its own; materialize it first.");
+        }
+    }
+
+    // The table holds the values divided by 2^exponent; always 0 outside the scaled arithmetic
+    public int getExponent() {
+        return exponent;
+    }
+
+    public void setExponent(int exponent) {
+        this.exponent = exponent;
     }
 
     public int size() {
-        return variables.size();
+        return ids.length;
     }
 
     public int tableSize() {
-        return table.size();
+        return tableSize;
     }
 
     // Compare two factors based on the number of variables
@@ -65,7 +222,7 @@ public class Factor implements Comparable<Factor> {
     public String toString() {
         return "Factor{" +
                 "variables=" + variables +
-                ", table=" + table +
+                ", values=" + Arrays.toString(materialize().values) +
                 '}';
     }
-}
\ No newline at end of file
+}
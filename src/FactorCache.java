@@ -0,0 +1,188 @@
+import java.util.*;
+
+// Bounded LRU cache of factors shared by the queries of one engine, sized by the bytes of their tables.
+// Cached factors are never modified. Each entry keeps the additions and multiplications it took to build,
+// so a query that reuses it reports the same counts as one that recomputes it.
+public class FactorCache {
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final long maxBytes;
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+    private long version;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long reusedAdditions;
+    private long reusedMultiplications;
+
+    public FactorCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized Entry get(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+            reusedAdditions += entry.additions;
+            reusedMultiplications += entry.multiplications;
+        }
+        return entry;
+    }
+
+    // Store a factor with the counts spent on it, evicting the least recently used entries to stay within the budget.
+    // A view keeps its whole backing array alive, so it is charged for that array rather than for its own entries.
+    public synchronized void put(Key key, Factor factor, int additions, int multiplications) {
+        long charged = factor.isView() ? factor.getStorage().length : factor.tableSize();
+        long size = ENTRY_OVERHEAD + 8L * charged + 4L * key.length();
+        if (size > maxBytes) {
+            return;
+        }
+        Entry previous = entries.put(key, new Entry(factor, additions, multiplications, size));
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    // Drop every entry if the network has changed since they were computed
+    public synchronized void validate(long networkVersion) {
+        if (networkVersion != version) {
+            clear();
+            version = networkVersion;
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    // Work the hits saved: what building their factors cost when they were computed
+    public synchronized long getReusedAdditions() {
+        return reusedAdditions;
+    }
+
+    public synchronized long getReusedMultiplications() {
+        return reusedMultiplications;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "factor cache: " + entries.size() + " entries, " + bytes + "/" + maxBytes + " bytes, "
+                + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+
+    // A cached factor and what building it cost
+    public static final class Entry {
+        private final Factor factor;
+        private final int additions;
+        private final int multiplications;
+        private final long bytes;
+
+        private Entry(Factor factor, int additions, int multiplications, long bytes) {
+            this.factor = factor;
+            this.additions = additions;
+            this.multiplications = multiplications;
+            this.bytes = bytes;
+        }
+
+        public Factor getFactor() {
+            return factor;
+        }
+
+        public int getAdditions() {
+            return additions;
+        }
+
+        public int getMultiplications() {
+            return multiplications;
+        }
+    }
+
+    // Structural description of how a factor is computed: a CPT restricted to the evidence on its scope,
+    // or a variable eliminated from the product of other factors taken in join order.
+    // Equal keys always describe the same table, built with the same operations.
+    public static final class Key {
+        private final int variable;
+        private final int[] evidence;
+        private final Key[] inputs;
+        private final int length;
+        private final int hash;
+
+        private Key(int variable, int[] evidence, Key[] inputs) {
+            this.variable = variable;
+            this.evidence = evidence;
+            this.inputs = inputs;
+            int length = 1 + evidence.length;
+            int hash = 31 * variable + Arrays.hashCode(evidence);
+            for (Key input : inputs) {
+                length += input.length;
+                hash = 31 * hash + input.hash;
+            }
+            this.length = length;
+            this.hash = hash;
+        }
+
+        // CPT of a node; evidence holds (variable id, outcome index) pairs sorted by variable id
+        public static Key cpt(int node, int[] evidence) {
+            return new Key(node, evidence.clone(), new Key[0]);
+        }
+
+        // Product of the inputs, in the order they are joined, with one variable summed out
+        public static Key eliminated(int variable, List<Key> inputs) {
+            return new Key(-1 - variable, new int[0], inputs.toArray(new Key[0]));
+        }
+
+        // Number of ints in the description, used to charge the key to the cache budget
+        int length() {
+            return length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && variable == other.variable && Arrays.equals(evidence, other.evidence)
+                    && Arrays.equals(inputs, other.inputs);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
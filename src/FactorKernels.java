@@ -0,0 +1,536 @@
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Allocation-free loops over flat factor tables.
+// Operand strides are given along the result's variable order, with 0 for variables an operand does not contain,
+// so the loops only step index counters and never decode positions, compare names or hash.
+// Tables with at least parallelThreshold entries are split into ranges of whole output entries and filled on the
+// common fork-join pool; every output is still computed by one thread in the sequential order, so the results are
+// bit-identical to the single-threaded loops.
+// When the JVM runs with --add-modules jdk.incubator.vector, the contiguous inner loops go through VectorKernels
+// instead. EXACT only vectorizes across independent outputs, which keeps every result bit-identical to the scalar
+// loops. RELAXED also sums the terms of one output across lanes; the reordered sum of n non-negative terms is within
+// (n - 1) * 2^-53 of the true sum relative to it either way, so the two differ by at most 2 * (n - 1) * 2^-53 relative,
+// far below the five decimals printed.
+public final class FactorKernels {
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1 << 18;
+
+    public enum Vectorization {
+        OFF, EXACT, RELAXED;
+
+        public static Vectorization parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    // Doubles per SIMD vector, or 0 when the Vector API is not available or would not pay off
+    private static final int VECTOR_LANES = detectVectorLanes();
+
+    private static volatile int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    private static volatile Vectorization vectorization = Vectorization.EXACT;
+
+    private FactorKernels() {
+    }
+
+    // Smallest table, in entries, that is processed in parallel; Integer.MAX_VALUE keeps every kernel sequential
+    public static int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public static void setParallelThreshold(int threshold) {
+        parallelThreshold = Math.max(1, threshold);
+    }
+
+    // Requested use of the SIMD kernels; it only takes effect where isVectorAvailable()
+    public static Vectorization getVectorization() {
+        return vectorization;
+    }
+
+    public static void setVectorization(Vectorization mode) {
+        vectorization = mode;
+    }
+
+    public static boolean isVectorAvailable() {
+        return VECTOR_LANES > 0;
+    }
+
+    // What the kernels run on, for reports
+    public static String describe() {
+        if (VECTOR_LANES == 0) {
+            return "scalar kernels";
+        }
+        return vectorization == Vectorization.OFF ? "scalar kernels (vector off)"
+                : VECTOR_LANES + "-lane vector kernels, " + vectorization.name().toLowerCase();
+    }
+
+    // out[i] = a[ia] * b[ib] for every assignment of the result variables (last variable fastest)
+    public static void product(double[] a, int[] stridesA, double[] b, int[] stridesB, int[] cardinalities, double[] out) {
+        product(a, 0, stridesA, b, 0, stridesB, cardinalities, out);
+    }
+
+    // The same with operands that start at an offset of their storage, such as factor views
+    public static void product(double[] a, int offsetA, int[] stridesA, double[] b, int offsetB, int[] stridesB,
+                               int[] cardinalities, double[] out) {
+        int last = cardinalities.length - 1;
+        if (last < 0) {
+            out[0] = a[offsetA] * b[offsetB];
+            return;
+        }
+        int merged = contiguousSuffix(cardinalities, stridesA, stridesB, out.length);
+        int[] shape = merged > 1 ? mergeCardinalities(cardinalities, merged) : cardinalities;
+        int[] shapeA = merged > 1 ? mergeStrides(stridesA, merged) : stridesA;
+        int[] shapeB = merged > 1 ? mergeStrides(stridesB, merged) : stridesB;
+        forRange(out.length / shape[shape.length - 1], out.length,
+                (from, to) -> productRows(a, offsetA, shapeA, b, offsetB, shapeB, shape, out, from, to));
+    }
+
+    // Rows [from, to) of a product, a row being all outcomes of the last variable
+    private static void productRows(double[] a, int offsetA, int[] stridesA, double[] b, int offsetB, int[] stridesB,
+                                    int[] cardinalities, double[] out, int from, int to) {
+        int last = cardinalities.length - 1;
+        int lastCardinality = cardinalities[last];
+        int lastStrideA = stridesA[last];
+        int lastStrideB = stridesB[last];
+        int[] counter = decode(from, cardinalities, last);
+        int indexA = offsetA + offset(counter, stridesA);
+        int indexB = offsetB + offset(counter, stridesB);
+        int position = from * lastCardinality;
+        boolean vector = isVectorRow(lastCardinality, lastStrideA, lastStrideB);
+        for (int row = from; row < to; row++) {
+            if (vector) {
+                VectorKernels.multiply(a, indexA, lastStrideA, b, indexB, lastStrideB, out, position, lastCardinality);
+                position += lastCardinality;
+            } else {
+                for (int k = 0, ka = indexA, kb = indexB; k < lastCardinality; k++, ka += lastStrideA, kb += lastStrideB) {
+                    out[position++] = a[ka] * b[kb];
+                }
+            }
+
+            // Advance the odometer over the remaining variables
+            for (int d = last - 1; d >= 0; d--) {
+                indexA += stridesA[d];
+                indexB += stridesB[d];
+                if (++counter[d] < cardinalities[d]) {
+                    break;
+                }
+                indexA -= stridesA[d] * cardinalities[d];
+                indexB -= stridesB[d] * cardinalities[d];
+                counter[d] = 0;
+            }
+        }
+    }
+
+    // Multiply two factors and sum out one result variable in the same pass, without building the product.
+    // eliminated is the position of the summed variable in the product order; the output keeps the other
+    // variables in that order. Each output is summed over the eliminated outcomes in increasing order,
+    // exactly as product followed by sumOut would.
+    public static void productSumOut(double[] a, int[] stridesA, double[] b, int[] stridesB, int[] cardinalities,
+                                     int eliminated, double[] out) {
+        productSumOut(a, 0, stridesA, b, 0, stridesB, cardinalities, eliminated, out);
+    }
+
+    public static void productSumOut(double[] a, int offsetA, int[] stridesA, double[] b, int offsetB, int[] stridesB,
+                                     int[] cardinalities, int eliminated, double[] out) {
+        int n = cardinalities.length - 1;
+
+        // Odometer over the kept variables only
+        int[] keptCardinalities = new int[n];
+        int[] keptStridesA = new int[n];
+        int[] keptStridesB = new int[n];
+        for (int i = 0, j = 0; i <= n; i++) {
+            if (i != eliminated) {
+                keptCardinalities[j] = cardinalities[i];
+                keptStridesA[j] = stridesA[i];
+                keptStridesB[j] = stridesB[i];
+                j++;
+            }
+        }
+        int eliminatedCardinality = cardinalities[eliminated];
+        int eliminatedStrideA = stridesA[eliminated];
+        int eliminatedStrideB = stridesB[eliminated];
+
+        // Vectorized: rows of consecutive outputs, each lane summing its own output
+        int merged = n > 0 ? contiguousSuffix(keptCardinalities, keptStridesA, keptStridesB, out.length) : 0;
+        if (merged > 0) {
+            productSumOutRows(a, offsetA, mergeStrides(keptStridesA, merged), b, offsetB, mergeStrides(keptStridesB, merged),
+                    mergeCardinalities(keptCardinalities, merged), eliminatedCardinality, eliminatedStrideA, eliminatedStrideB, out);
+            return;
+        }
+
+        // Relaxed: each output as one horizontal sum over the eliminated outcomes
+        boolean horizontal = vectorization == Vectorization.RELAXED
+                && isVectorRow(eliminatedCardinality, eliminatedStrideA, eliminatedStrideB);
+
+        forRange(out.length, (long) out.length * eliminatedCardinality, (from, to) -> {
+            int[] counter = decode(from, keptCardinalities, n);
+            int indexA = offsetA + offset(counter, keptStridesA);
+            int indexB = offsetB + offset(counter, keptStridesB);
+            for (int position = from; position < to; position++) {
+                if (horizontal) {
+                    out[position] = VectorKernels.dot(a, indexA, eliminatedStrideA, b, indexB, eliminatedStrideB,
+                            eliminatedCardinality);
+                } else {
+                    double sum = 0.0;
+                    for (int k = 0, ka = indexA, kb = indexB; k < eliminatedCardinality; k++, ka += eliminatedStrideA, kb += eliminatedStrideB) {
+                        sum += a[ka] * b[kb];
+                    }
+                    out[position] = sum;
+                }
+
+                for (int d = n - 1; d >= 0; d--) {
+                    indexA += keptStridesA[d];
+                    indexB += keptStridesB[d];
+                    if (++counter[d] < keptCardinalities[d]) {
+                        break;
+                    }
+                    indexA -= keptStridesA[d] * keptCardinalities[d];
+                    indexB -= keptStridesB[d] * keptCardinalities[d];
+                    counter[d] = 0;
+                }
+            }
+        });
+    }
+
+    // productSumOut over rows of the last kept variable, whose strides are 0 or 1
+    private static void productSumOutRows(double[] a, int offsetA, int[] keptStridesA, double[] b, int offsetB,
+                                          int[] keptStridesB, int[] keptCardinalities, int eliminatedCardinality,
+                                          int eliminatedStrideA, int eliminatedStrideB, double[] out) {
+        int last = keptCardinalities.length - 1;
+        int rowLength = keptCardinalities[last];
+        forRange(out.length / rowLength, (long) out.length * eliminatedCardinality, (from, to) -> {
+            int[] counter = decode(from, keptCardinalities, last);
+            int indexA = offsetA + offset(counter, keptStridesA);
+            int indexB = offsetB + offset(counter, keptStridesB);
+            for (int row = from; row < to; row++) {
+                VectorKernels.productSumOut(a, indexA, keptStridesA[last], b, indexB, keptStridesB[last],
+                        eliminatedCardinality, eliminatedStrideA, eliminatedStrideB, out, row * rowLength, rowLength);
+                for (int d = last - 1; d >= 0; d--) {
+                    indexA += keptStridesA[d];
+                    indexB += keptStridesB[d];
+                    if (++counter[d] < keptCardinalities[d]) {
+                        break;
+                    }
+                    indexA -= keptStridesA[d] * keptCardinalities[d];
+                    indexB -= keptStridesB[d] * keptCardinalities[d];
+                    counter[d] = 0;
+                }
+            }
+        });
+    }
+
+    // target[i] *= b[ib] for every assignment of the target variables
+    public static void multiplyInto(double[] target, int[] cardinalities, double[] b, int[] stridesB) {
+        int n = cardinalities.length;
+
+        // The target is contiguous along any trailing variables, so only b's strides limit the merge
+        int merged = n > 0 ? contiguousSuffix(cardinalities, stridesB, stridesB, target.length) : 0;
+        if (merged > 0) {
+            int[] shape = mergeCardinalities(cardinalities, merged);
+            int[] shapeB = mergeStrides(stridesB, merged);
+            int last = shape.length - 1;
+            int rowLength = shape[last];
+            forRange(target.length / rowLength, target.length, (from, to) -> {
+                int[] counter = decode(from, shape, last);
+                int indexB = offset(counter, shapeB);
+                for (int row = from; row < to; row++) {
+                    VectorKernels.multiplyInto(target, row * rowLength, b, indexB, shapeB[last], rowLength);
+                    for (int d = last - 1; d >= 0; d--) {
+                        indexB += shapeB[d];
+                        if (++counter[d] < shape[d]) {
+                            break;
+                        }
+                        indexB -= shapeB[d] * shape[d];
+                        counter[d] = 0;
+                    }
+                }
+            });
+            return;
+        }
+        forRange(target.length, target.length, (from, to) -> {
+            int[] counter = decode(from, cardinalities, n);
+            int indexB = offset(counter, stridesB);
+            for (int position = from; position < to; position++) {
+                target[position] *= b[indexB];
+                for (int d = n - 1; d >= 0; d--) {
+                    indexB += stridesB[d];
+                    if (++counter[d] < cardinalities[d]) {
+                        break;
+                    }
+                    indexB -= stridesB[d] * cardinalities[d];
+                    counter[d] = 0;
+                }
+            }
+        });
+    }
+
+    // out[io] += source[i], summing out every source variable whose output stride is 0; out must start zeroed.
+    // Only the leading kept variables are split across threads, so each output is still summed by one thread in source order.
+    public static void marginalize(double[] source, int[] cardinalities, int[] stridesOut, double[] out) {
+        int n = cardinalities.length;
+        int units = 1;
+        int leading = 0;
+        while (leading < n && stridesOut[leading] != 0) {
+            units *= cardinalities[leading++];
+        }
+        int block = source.length / units;
+        int split = leading;
+        forRange(units, source.length, (from, to) -> {
+            int[] counter = new int[n];
+            System.arraycopy(decode(from, cardinalities, split), 0, counter, 0, split);
+            int indexOut = offset(counter, stridesOut);
+            for (int position = from * block, end = to * block; position < end; position++) {
+                out[indexOut] += source[position];
+                for (int d = n - 1; d >= 0; d--) {
+                    indexOut += stridesOut[d];
+                    if (++counter[d] < cardinalities[d]) {
+                        break;
+                    }
+                    indexOut -= stridesOut[d] * cardinalities[d];
+                    counter[d] = 0;
+                }
+            }
+        });
+    }
+
+    // Sum the (outer, outcome, inner) blocks of a table into (outer, inner)
+    public static void sumOut(double[] source, int inner, int cardinality, double[] out) {
+        int block = inner * cardinality;
+        if (isVectorRow(inner, 1, 1)) {
+            // Vectorized down the columns of each block: every lane is one output, summed in outcome order
+            forRange(out.length / inner, source.length, (from, to) -> {
+                for (int outer = from; outer < to; outer++) {
+                    VectorKernels.sumOut(source, outer * block, inner, cardinality, out, outer * inner);
+                }
+            });
+            return;
+        }
+        if (inner == 1 && vectorization == Vectorization.RELAXED && isVectorRow(cardinality, 1, 1)) {
+            forRange(out.length, source.length, (from, to) -> {
+                for (int position = from; position < to; position++) {
+                    out[position] = VectorKernels.sum(source, position * cardinality, cardinality);
+                }
+            });
+            return;
+        }
+        forRange(out.length, source.length, (from, to) -> {
+            int outer = from / inner;
+            int j = from % inner;
+            for (int position = from; position < to; position++) {
+                double sum = 0.0;
+                for (int k = 0, index = outer * block + j; k < cardinality; k++, index += inner) {
+                    sum += source[index];
+                }
+                out[position] = sum;
+                if (++j == inner) {
+                    j = 0;
+                    outer++;
+                }
+            }
+        });
+    }
+
+    // values[i] /= divisor; the sum itself is left to the caller, which also counts its additions
+    public static void divide(double[] values, double divisor) {
+        boolean vector = lanes() > 0;
+        forRange(values.length, values.length, (from, to) -> {
+            if (vector) {
+                VectorKernels.divide(values, from, to, divisor);
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                values[i] /= divisor;
+            }
+        });
+    }
+
+    // out[i] = source[offset + position of i along strides]: the contiguous copy of a strided view
+    public static void gather(double[] source, int offset, int[] strides, int[] cardinalities, double[] out) {
+        int n = cardinalities.length;
+        forRange(out.length, out.length, (from, to) -> {
+            int[] counter = decode(from, cardinalities, n);
+            int index = offset + offset(counter, strides);
+            for (int position = from; position < to; position++) {
+                out[position] = source[index];
+                for (int d = n - 1; d >= 0; d--) {
+                    index += strides[d];
+                    if (++counter[d] < cardinalities[d]) {
+                        break;
+                    }
+                    index -= strides[d] * cardinalities[d];
+                    counter[d] = 0;
+                }
+            }
+        });
+    }
+
+    // The same from a buffer, such as a memory-mapped CPT, reading only the entries the strides reach
+    public static void gather(DoubleBuffer source, int offset, int[] strides, int[] cardinalities, double[] out) {
+        int n = cardinalities.length;
+        forRange(out.length, out.length, (from, to) -> {
+            int[] counter = decode(from, cardinalities, n);
+            int index = offset + offset(counter, strides);
+            for (int position = from; position < to; position++) {
+                out[position] = source.get(index);
+                for (int d = n - 1; d >= 0; d--) {
+                    index += strides[d];
+                    if (++counter[d] < cardinalities[d]) {
+                        break;
+                    }
+                    index -= strides[d] * cardinalities[d];
+                    counter[d] = 0;
+                }
+            }
+        });
+    }
+
+    // Largest entry, for the scaled arithmetic; a plain loop the JIT can vectorize
+    public static double max(double[] values) {
+        if (lanes() > 0) {
+            return VectorKernels.max(values);
+        }
+        double max = 0;
+        for (double value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    // values[i] *= 2^exponent, which is exact as long as the results stay normal
+    public static void scale(double[] values, int exponent) {
+        double factor = Math.scalb(1.0, exponent);
+        boolean vector = lanes() > 0;
+        forRange(values.length, values.length, (from, to) -> {
+            if (vector) {
+                VectorKernels.scale(values, from, to, factor);
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                values[i] *= factor;
+            }
+        });
+    }
+
+    // Lanes of the vector kernels in use, 0 for the scalar loops
+    private static int lanes() {
+        return vectorization == Vectorization.OFF ? 0 : VECTOR_LANES;
+    }
+
+    // Whether a run of 'length' entries with these operand strides is worth a vector kernel
+    private static boolean isVectorRow(int length, int strideA, int strideB) {
+        int lanes = lanes();
+        return lanes > 0 && length >= lanes && (strideA & ~1) == 0 && (strideB & ~1) == 0;
+    }
+
+    // How many trailing variables each operand steps through contiguously, or not at all, when together they make
+    // rows long enough for the vector kernels; 0 otherwise. Reading them as one variable turns short rows into long
+    // ones without changing any entry's operands.
+    private static int contiguousSuffix(int[] cardinalities, int[] stridesA, int[] stridesB, int entries) {
+        int last = cardinalities.length - 1;
+        int strideA = stridesA[last];
+        int strideB = stridesB[last];
+        if (!isVectorRow(entries, strideA, strideB)) {
+            return 0;
+        }
+        int length = 1;
+        int count = 0;
+        for (int d = last; d >= 0 && stridesA[d] == strideA * length && stridesB[d] == strideB * length; d--) {
+            length *= cardinalities[d];
+            count++;
+        }
+        return length >= lanes() ? count : 0;
+    }
+
+    // The cardinalities with the last 'count' variables merged into one
+    private static int[] mergeCardinalities(int[] cardinalities, int count) {
+        int kept = cardinalities.length - count;
+        int[] result = Arrays.copyOf(cardinalities, kept + 1);
+        for (int d = kept + 1; d < cardinalities.length; d++) {
+            result[kept] *= cardinalities[d];
+        }
+        return result;
+    }
+
+    // The strides with the last 'count' variables merged into one, which steps like the last of them
+    private static int[] mergeStrides(int[] strides, int count) {
+        int kept = strides.length - count;
+        int[] result = Arrays.copyOf(strides, kept + 1);
+        result[kept] = strides[strides.length - 1];
+        return result;
+    }
+
+    private static int detectVectorLanes() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return 0;
+        }
+        try {
+            int lanes = VectorKernels.lanes();
+            return lanes >= 2 ? lanes : 0;
+        } catch (LinkageError e) {
+            return 0;
+        }
+    }
+
+    // Work on the output units [from, to)
+    @FunctionalInterface
+    private interface RangeKernel {
+        void run(int from, int to);
+    }
+
+    // Run a kernel over units [0, units) touching about 'entries' table entries, in parallel when that is large enough
+    private static void forRange(int units, long entries, RangeKernel kernel) {
+        int parallelism = ForkJoinPool.getCommonPoolParallelism();
+        if (entries < parallelThreshold || units < 2 || parallelism < 2) {
+            kernel.run(0, units);
+            return;
+        }
+        int chunks = (int) Math.min(units, Math.min(4L * parallelism, Math.max(2L, entries / (parallelThreshold / 4 + 1))));
+        ForkJoinPool.commonPool().invoke(new RangeTask(kernel, 0, units, (units + chunks - 1) / chunks));
+    }
+
+    private static final class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // Tasks only ever run on the pool that forked them, never serialized
+        private final transient RangeKernel kernel;
+        private final int from;
+        private final int to;
+        private final int grain;
+
+        RangeTask(RangeKernel kernel, int from, int to, int grain) {
+            this.kernel = kernel;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                kernel.run(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(kernel, from, middle, grain), new RangeTask(kernel, middle, to, grain));
+        }
+    }
+
+    // Odometer position of a unit over the first 'dimensions' variables (last of them fastest)
+    private static int[] decode(int unit, int[] cardinalities, int dimensions) {
+        int[] counter = new int[dimensions];
+        for (int d = dimensions - 1; d >= 0; d--) {
+            counter[d] = unit % cardinalities[d];
+            unit /= cardinalities[d];
+        }
+        return counter;
+    }
+
+    private static int offset(int[] counter, int[] strides) {
+        int index = 0;
+        for (int d = 0; d < counter.length; d++) {
+            index += counter[d] * strides[d];
+        }
+        return index;
+    }
+}
@@ -0,0 +1,199 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Gibbs sampling: each chain starts from a sample that agrees with the evidence, then repeatedly redraws every
+// unobserved node from its distribution given its Markov blanket, counting one sample per sweep after the burn-in.
+// Consecutive sweeps are correlated, so the error comes from the spread of the batch means. Chains can get stuck
+// when CPTs hold zeros; likelihood weighting has no such problem.
+public class GibbsSampler extends Sampler {
+
+    // Forward samples tried for a starting state before the evidence is taken as impossible
+    private static final int START_ATTEMPTS = 10_000;
+
+    private final int burnIn;
+
+    public GibbsSampler(BayesianNetwork network, InferenceOptions options) {
+        super(network, options);
+        this.burnIn = options.getBurnIn();
+    }
+
+    @Override
+    protected String name() {
+        return "gibbs";
+    }
+
+    @Override
+    protected Chain newChain(Tables tables, Plan plan, SplittableRandom random) {
+        return new GibbsChain(tables, plan, random, burnIn, network);
+    }
+
+    // Standard deviation of the batch means over the square root of the number of batches
+    @Override
+    protected double standardError(List<Tally> batches, Tally total, int config) {
+        int count = 0;
+        double sum = 0;
+        double sumSquares = 0;
+        for (Tally batch : batches) {
+            if (batch.total > 0) {
+                double mean = batch.weights[config] / batch.total;
+                sum += mean;
+                sumSquares += mean * mean;
+                count++;
+            }
+        }
+        if (count < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double mean = sum / count;
+        double variance = (sumSquares - count * mean * mean) / (count - 1);
+        return Math.sqrt(Math.max(0, variance) / count);
+    }
+
+    // The chain samples the posterior only, so P(evidence) is unknown
+    @Override
+    protected double evidenceProbability(Tally total) {
+        return Double.NaN;
+    }
+
+    private static final class GibbsChain extends Chain {
+        private final Tables tables;
+        private final Plan plan;
+        private final int burnIn;
+        private final int[] state;
+        private final int[] free;
+        private final int[][] children;
+        private final int[][] childStrides;
+        private final double[] distribution;
+        private boolean started;
+
+        GibbsChain(Tables tables, Plan plan, SplittableRandom random, int burnIn, BayesianNetwork network) {
+            super(random);
+            this.tables = tables;
+            this.plan = plan;
+            this.burnIn = burnIn;
+            int n = tables.cardinalities.length;
+            this.state = new int[n];
+            this.children = new int[n][];
+            this.childStrides = new int[n][];
+            int count = 0;
+            int[] free = new int[plan.order.length];
+            int maxCardinality = 1;
+            for (int id : plan.order) {
+                maxCardinality = Math.max(maxCardinality, tables.cardinalities[id]);
+                if (plan.evidence[id] >= 0) {
+                    continue;
+                }
+                free[count++] = id;
+                // Children outside the plan are barren and drop out of the blanket
+                int[] all = network.getChildren(id);
+                int relevant = 0;
+                for (int child : all) {
+                    if (plan.relevant[child]) {
+                        relevant++;
+                    }
+                }
+                children[id] = new int[relevant];
+                childStrides[id] = new int[relevant];
+                relevant = 0;
+                for (int child : all) {
+                    if (plan.relevant[child]) {
+                        children[id][relevant] = child;
+                        int[] parents = tables.parents[child];
+                        for (int p = 0; p < parents.length; p++) {
+                            if (parents[p] == id) {
+                                childStrides[id][relevant] = tables.strides[child][p];
+                            }
+                        }
+                        relevant++;
+                    }
+                }
+            }
+            this.free = Arrays.copyOf(free, count);
+            this.distribution = new double[maxCardinality];
+        }
+
+        @Override
+        protected void sample(int count, Tally tally) {
+            if (!started) {
+                start();
+                for (int sweep = 0; sweep < burnIn; sweep++) {
+                    sweep();
+                }
+                started = true;
+            }
+            for (int s = 0; s < count; s++) {
+                sweep();
+                tally.add(plan.config(state), 1);
+            }
+        }
+
+        // Forward samples with the evidence clamped until one has a non-zero weight
+        private void start() {
+            for (int attempt = 0; attempt < START_ATTEMPTS; attempt++) {
+                boolean possible = true;
+                for (int id : plan.order) {
+                    int row = tables.row(id, state);
+                    if (plan.evidence[id] >= 0) {
+                        state[id] = plan.evidence[id];
+                        if (tables.probabilities[id][row * tables.cardinalities[id] + state[id]] == 0) {
+                            possible = false;
+                            break;
+                        }
+                    } else {
+                        state[id] = tables.draw(id, row, random.nextDouble());
+                    }
+                }
+                if (possible) {
+                    return;
+                }
+            }
+            throw new IllegalStateException("No starting state agrees with the evidence; it may have probability zero.");
+        }
+
+        // P(x | parents) times P(child | its parents) over the children, for every outcome x of each free node
+        private void sweep() {
+            for (int id : free) {
+                int[] ids = children[id];
+                if (ids.length == 0) {
+                    // Without children the blanket is just the parents
+                    state[id] = tables.draw(id, tables.row(id, state), random.nextDouble());
+                    continue;
+                }
+                int k = tables.cardinalities[id];
+                int base = tables.row(id, state) * k;
+                double[] own = tables.probabilities[id];
+                for (int j = 0; j < k; j++) {
+                    distribution[j] = own[base + j];
+                }
+                for (int c = 0; c < ids.length; c++) {
+                    int child = ids[c];
+                    int kc = tables.cardinalities[child];
+                    int stride = childStrides[id][c];
+                    int row = tables.row(child, state) - state[id] * stride;
+                    double[] table = tables.probabilities[child];
+                    for (int j = 0; j < k; j++) {
+                        distribution[j] *= table[(row + j * stride) * kc + state[child]];
+                    }
+                }
+                double total = 0;
+                for (int j = 0; j < k; j++) {
+                    total += distribution[j];
+                }
+                if (total == 0) {
+                    continue;
+                }
+                double u = random.nextDouble() * total;
+                int outcome = k - 1;
+                for (int j = 0; j < k - 1; j++) {
+                    u -= distribution[j];
+                    if (u < 0) {
+                        outcome = j;
+                        break;
+                    }
+                }
+                state[id] = outcome;
+            }
+        }
+    }
+}
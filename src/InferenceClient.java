@@ -0,0 +1,122 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Client for InferenceServer. Given an Ex1 input file it selects the network named on the first line,
+// pipelines every query and prints the answers, so its output matches Ex1's output.txt:
+//   java InferenceClient [--host 127.0.0.1] [--port 7070] src/input.txt > output.txt
+public class InferenceClient implements Closeable {
+    private final Socket socket;
+    private final BufferedReader in;
+    private final BufferedWriter out;
+
+    public InferenceClient(String host, int port) throws IOException {
+        socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = 7070;
+        String inputFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--host") && i + 1 < args.length) {
+                host = args[++i];
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else {
+                inputFile = args[i];
+            }
+        }
+        if (inputFile == null) {
+            System.err.println("Usage: java InferenceClient [--host 127.0.0.1] [--port 7070] input.txt");
+            return;
+        }
+
+        List<String> lines = Files.readAllLines(Path.of(inputFile));
+        List<String> requests = new ArrayList<>();
+        requests.add("USE " + InferenceServer.networkName(Path.of(lines.get(0).trim())));
+        for (String line : lines.subList(1, lines.size())) {
+            if (!line.trim().isEmpty()) {
+                requests.add(line);
+            }
+        }
+
+        try (InferenceClient client = new InferenceClient(host, port)) {
+            List<String> answers = client.askAll(requests);
+            if (!answers.get(0).equals("ok")) {
+                System.err.println(answers.get(0));
+                return;
+            }
+            for (String answer : answers.subList(1, answers.size())) {
+                System.out.println(answer);
+            }
+        }
+    }
+
+    // One request, one round trip
+    public String ask(String request) throws IOException {
+        out.write(request);
+        out.newLine();
+        out.flush();
+        return readAnswer();
+    }
+
+    // Every request is sent by a writer thread while the answers are read back, so the server sees them
+    // pipelined and answers them in batches. None of the requests may be blank or QUIT.
+    public List<String> askAll(List<String> requests) throws IOException, InterruptedException {
+        IOException[] failure = new IOException[1];
+        Thread writer = Thread.ofVirtual().start(() -> {
+            try {
+                for (String request : requests) {
+                    out.write(request);
+                    out.newLine();
+                }
+                out.flush();
+            } catch (IOException e) {
+                failure[0] = e;
+            }
+        });
+        List<String> answers = new ArrayList<>(requests.size());
+        try {
+            for (int i = 0; i < requests.size(); i++) {
+                answers.add(readAnswer());
+            }
+        } finally {
+            if (answers.size() < requests.size()) {
+                socket.close(); // Unblocks the writer
+            }
+            writer.join();
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        return answers;
+    }
+
+    private String readAnswer() throws IOException {
+        String answer = in.readLine();
+        if (answer == null) {
+            throw new EOFException("The server closed the connection.");
+        }
+        return answer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            out.write("QUIT");
+            out.newLine();
+            out.flush();
+        } catch (IOException e) {
+            // Already closed by the server
+        }
+        socket.close();
+    }
+}
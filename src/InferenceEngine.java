@@ -0,0 +1,102 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Answers P(query | evidence) queries against one network
+public interface InferenceEngine {
+
+    // hiddenVariables is the elimination order from the query line; engines that do not eliminate ignore it
+    QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables);
+
+    // Normalized joint distribution of the query variables and P(evidence), from one inference pass
+    Posterior posterior(List<String> queryVariables, Map<String, String> evidence);
+
+    // Print cache and work statistics gathered so far; engines without any print nothing
+    default void reportStatistics(PrintStream out) {
+    }
+
+    // Engine selected by the options for a network.
+    // The kernels are shared by every engine, so the last options created win the parallel threshold and vectorization
+    static InferenceEngine create(BayesianNetwork network, InferenceOptions options) {
+        FactorKernels.setParallelThreshold(options.getParallelThreshold());
+        FactorKernels.setVectorization(options.getVectorization());
+        InferenceEngine engine;
+        switch (options.getEngine()) {
+            case JUNCTION_TREE:
+                engine = new JunctionTree(network, options);
+                break;
+            case ARITHMETIC_CIRCUIT:
+                engine = CircuitEngine.create(network, options);
+                break;
+            case LIKELIHOOD_WEIGHTING:
+            case GIBBS:
+                engine = sampler(network, options, options.getEngine());
+                break;
+            case VARIABLE_ELIMINATION:
+            default:
+                engine = VariableElimination.engine(network, options);
+                break;
+        }
+        // Both run eliminations that can be over the factor budget; the junction tree only for variables no clique holds
+        InferenceOptions.Engine kind = options.getEngine();
+        if (kind == InferenceOptions.Engine.VARIABLE_ELIMINATION || kind == InferenceOptions.Engine.JUNCTION_TREE) {
+            InferenceEngine fallback = fallback(network, options);
+            if (fallback != null) {
+                engine = withFallback(engine, fallback);
+            }
+        }
+        if (options.getQueryCacheSize() > 0) {
+            boolean orderMatters = options.getEngine() == InferenceOptions.Engine.VARIABLE_ELIMINATION;
+            engine = new QueryCache(engine, network, orderMatters, options.getQueryCacheSize(), options.getQueryCachePolicy());
+        }
+        return engine;
+    }
+
+    // The sampler of the fallback option, or null when rejected queries stay rejected
+    static InferenceEngine fallback(BayesianNetwork network, InferenceOptions options) {
+        return options.getFallback() == null ? null : sampler(network, options, options.getFallback());
+    }
+
+    private static InferenceEngine sampler(BayesianNetwork network, InferenceOptions options, InferenceOptions.Engine kind) {
+        switch (kind) {
+            case LIKELIHOOD_WEIGHTING:
+                return new LikelihoodWeighting(network, options);
+            case GIBBS:
+                return new GibbsSampler(network, options);
+            default:
+                throw new IllegalArgumentException(kind + " is not a sampling engine.");
+        }
+    }
+
+    // Exact answers, with the queries the exact engine rejects (over the factor budget) estimated by sampling
+    static InferenceEngine withFallback(InferenceEngine exact, InferenceEngine fallback) {
+        return new InferenceEngine() {
+            @Override
+            public QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+                // The exact engine prunes the maps it is given, so it works on copies
+                try {
+                    return exact.query(new HashMap<>(queryVariables), new HashMap<>(evidence), new ArrayList<>(hiddenVariables));
+                } catch (IllegalStateException e) {
+                    return fallback.query(queryVariables, evidence, hiddenVariables);
+                }
+            }
+
+            @Override
+            public Posterior posterior(List<String> queryVariables, Map<String, String> evidence) {
+                try {
+                    return exact.posterior(queryVariables, evidence);
+                } catch (IllegalStateException e) {
+                    return fallback.posterior(queryVariables, evidence);
+                }
+            }
+
+            @Override
+            public void reportStatistics(PrintStream out) {
+                exact.reportStatistics(out);
+                fallback.reportStatistics(out);
+            }
+        };
+    }
+}
@@ -0,0 +1,124 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+// JFR events for inference; they cost next to nothing unless a recording enables them, e.g.
+// java -XX:StartFlightRecording=filename=bn.jfr,settings=profile Ex1, then "jfr print --events bn.Query bn.jfr"
+public final class InferenceEvents {
+
+    private InferenceEvents() {
+    }
+
+    @Name("bn.Query")
+    @Label("Query")
+    @Category("Bayesian Network")
+    @Description("One answered query, with the time spent in each variable elimination phase")
+    @StackTrace(false)
+    public static class Query extends Event {
+        @Label("Engine")
+        public String engine;
+
+        @Label("Query")
+        public String query;
+
+        @Label("Evidence Variables")
+        public int evidence;
+
+        @Label("Eliminated Variables")
+        public int eliminated;
+
+        @Label("Additions")
+        public int additions;
+
+        @Label("Multiplications")
+        public int multiplications;
+
+        @Label("Largest Factor")
+        public long maxFactorSize;
+
+        @Label("Widest Factor")
+        public int maxFactorWidth;
+
+        @Label("Initialize")
+        @Timespan
+        public long initialize;
+
+        @Label("Evidence Reduction")
+        @Timespan
+        public long evidenceReduction;
+
+        @Label("Filter")
+        @Timespan
+        public long filter;
+
+        @Label("Order")
+        @Timespan
+        public long order;
+
+        @Label("Eliminate")
+        @Timespan
+        public long eliminate;
+
+        @Label("Finalize")
+        @Timespan
+        public long finalizeTime;
+    }
+
+    @Name("bn.Elimination")
+    @Label("Elimination Step")
+    @Category("Bayesian Network")
+    @Description("Joining the factors of one variable and summing it out")
+    @StackTrace(false)
+    public static class Elimination extends Event {
+        @Label("Variable")
+        public String variable;
+
+        @Label("Joined Factors")
+        public int factors;
+
+        @Label("Result Size")
+        public long resultSize;
+
+        @Label("Result Width")
+        public int resultWidth;
+
+        @Label("Cached")
+        public boolean cached;
+    }
+
+    @Name("bn.BayesBall")
+    @Label("Bayes-Ball Traversal")
+    @Category("Bayesian Network")
+    @StackTrace(false)
+    public static class BayesBall extends Event {
+        @Label("Source")
+        public String source;
+
+        @Label("States Visited")
+        public int visited;
+
+        @Label("Nodes Reached")
+        public int reached;
+    }
+
+    @Name("bn.Load")
+    @Label("Network Load")
+    @Category("Bayesian Network")
+    @StackTrace(false)
+    public static class Load extends Event {
+        @Label("File")
+        public String file;
+
+        @Label("Size")
+        @DataAmount
+        public long bytes;
+
+        @Label("Nodes")
+        public int nodes;
+    }
+}
@@ -0,0 +1,125 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Process-wide counters for the hot paths, cheap enough to stay on: adders and power-of-two histograms,
+// printed as one summary per batch. The same measurements go to JFR as InferenceEvents when a recording is on.
+public final class InferenceMetrics {
+
+    public enum Phase {
+        LOAD, INITIALIZE, EVIDENCE, FILTER, ORDER, ELIMINATE, FINALIZE, CALIBRATE
+    }
+
+    private static final int BUCKETS = 64;
+    private static final LongAdder[] PHASE_NANOS = new LongAdder[Phase.values().length];
+    private static final LongAdder[] PHASE_COUNTS = new LongAdder[Phase.values().length];
+    private static final LongAdder QUERIES = new LongAdder();
+    private static final LongAdder QUERY_NANOS = new LongAdder();
+    private static final LongAccumulator MAX_QUERY_NANOS = new LongAccumulator(Math::max, 0);
+    private static final AtomicLongArray QUERY_MICROS = new AtomicLongArray(BUCKETS);
+    private static final AtomicLongArray FACTOR_SIZES = new AtomicLongArray(BUCKETS);
+    private static final LongAccumulator MAX_FACTOR_SIZE = new LongAccumulator(Math::max, 0);
+    private static final LongAccumulator MAX_FACTOR_WIDTH = new LongAccumulator(Math::max, 0);
+    private static final LongAdder TRAVERSALS = new LongAdder();
+    private static final LongAdder VISITED = new LongAdder();
+    private static final LongAdder LOADED_BYTES = new LongAdder();
+
+    static {
+        for (int i = 0; i < PHASE_NANOS.length; i++) {
+            PHASE_NANOS[i] = new LongAdder();
+            PHASE_COUNTS[i] = new LongAdder();
+        }
+    }
+
+    private InferenceMetrics() {
+    }
+
+    public static void phase(Phase phase, long nanos) {
+        PHASE_NANOS[phase.ordinal()].add(nanos);
+        PHASE_COUNTS[phase.ordinal()].increment();
+    }
+
+    public static void query(long nanos) {
+        QUERIES.increment();
+        QUERY_NANOS.add(nanos);
+        MAX_QUERY_NANOS.accumulate(nanos);
+        QUERY_MICROS.incrementAndGet(bucket(nanos / 1000));
+    }
+
+    // An intermediate factor that was actually built
+    public static void factor(long size, int width) {
+        FACTOR_SIZES.incrementAndGet(bucket(size));
+        MAX_FACTOR_SIZE.accumulate(size);
+        MAX_FACTOR_WIDTH.accumulate(width);
+    }
+
+    public static void bayesBall(int visited) {
+        TRAVERSALS.increment();
+        VISITED.add(visited);
+    }
+
+    public static void load(long bytes, long nanos) {
+        LOADED_BYTES.add(bytes);
+        phase(Phase.LOAD, nanos);
+    }
+
+    // Bucket b holds values in [2^(b-1), 2^b), bucket 0 holds 0
+    private static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, value)));
+    }
+
+    public static void reset() {
+        for (int i = 0; i < PHASE_NANOS.length; i++) {
+            PHASE_NANOS[i].reset();
+            PHASE_COUNTS[i].reset();
+        }
+        QUERIES.reset();
+        QUERY_NANOS.reset();
+        MAX_QUERY_NANOS.reset();
+        MAX_FACTOR_SIZE.reset();
+        MAX_FACTOR_WIDTH.reset();
+        TRAVERSALS.reset();
+        VISITED.reset();
+        LOADED_BYTES.reset();
+        for (int b = 0; b < BUCKETS; b++) {
+            QUERY_MICROS.set(b, 0);
+            FACTOR_SIZES.set(b, 0);
+        }
+    }
+
+    public static String summary() {
+        StringBuilder out = new StringBuilder();
+        long queries = QUERIES.sum();
+        out.append(String.format("queries: %d, mean %.1f us, max %.1f us%n", queries,
+                queries == 0 ? 0.0 : QUERY_NANOS.sum() / 1e3 / queries, MAX_QUERY_NANOS.get() / 1e3));
+        out.append("query latency (us): ").append(histogram(QUERY_MICROS)).append(System.lineSeparator());
+        for (Phase phase : Phase.values()) {
+            long count = PHASE_COUNTS[phase.ordinal()].sum();
+            if (count > 0) {
+                out.append(String.format("phase %-10s %10d calls %12.3f ms%n", phase.name().toLowerCase(), count,
+                        PHASE_NANOS[phase.ordinal()].sum() / 1e6));
+            }
+        }
+        out.append(String.format("largest factor: %d entries, %d variables%n", MAX_FACTOR_SIZE.get(), MAX_FACTOR_WIDTH.get()));
+        out.append("factor sizes (entries): ").append(histogram(FACTOR_SIZES)).append(System.lineSeparator());
+        long traversals = TRAVERSALS.sum();
+        out.append(String.format("bayes-ball: %d traversals, %.1f states visited on average%n", traversals,
+                traversals == 0 ? 0.0 : (double) VISITED.sum() / traversals));
+        long loadNanos = PHASE_NANOS[Phase.LOAD.ordinal()].sum();
+        out.append(String.format("loaded: %d bytes at %.3f MB/s", LOADED_BYTES.sum(),
+                loadNanos == 0 ? 0.0 : LOADED_BYTES.sum() / (loadNanos / 1e9) / (1 << 20)));
+        return out.toString();
+    }
+
+    // Non-empty buckets as "<upper bound>:count"
+    private static String histogram(AtomicLongArray buckets) {
+        StringBuilder out = new StringBuilder();
+        for (int b = 0; b < BUCKETS; b++) {
+            long count = buckets.get(b);
+            if (count > 0) {
+                out.append(out.length() == 0 ? "" : " ").append("<").append(b == 0 ? 1 : 1L << Math.min(62, b)).append(":").append(count);
+            }
+        }
+        return out.length() == 0 ? "-" : out.toString();
+    }
+}
@@ -0,0 +1,395 @@
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// Settings for answering queries, read from -Dbn.* system properties by Ex1
+public class InferenceOptions {
+
+    public enum Engine {
+        VARIABLE_ELIMINATION, JUNCTION_TREE, LIKELIHOOD_WEIGHTING, GIBBS, ARITHMETIC_CIRCUIT;
+
+        // Accepts "ve", "jt", "lw", "gibbs", "ac" or the full names
+        public static Engine parse(String name) {
+            String normalized = name.trim().toUpperCase().replace('-', '_');
+            switch (normalized) {
+                case "VE":
+                    return VARIABLE_ELIMINATION;
+                case "JT":
+                    return JUNCTION_TREE;
+                case "LW":
+                    return LIKELIHOOD_WEIGHTING;
+                case "AC":
+                    return ARITHMETIC_CIRCUIT;
+                default:
+                    return valueOf(normalized);
+            }
+        }
+    }
+
+    // How variable elimination represents factor values: plain doubles, or doubles sharing a power-of-two exponent
+    // per factor so that long chains of products do not underflow
+    public enum Arithmetic {
+        DOUBLE, SCALED;
+
+        public static Arithmetic parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private Engine engine;
+    private EliminationOrdering.Strategy ordering;
+    private long maxFactorSize;
+    private boolean reportOrders;
+    private int threads;
+    private boolean virtualThreads;
+    private int parallelThreshold;
+    private FactorKernels.Vectorization vectorization;
+    private long factorCacheBytes;
+    private int queryCacheSize;
+    private QueryCache.EvictionPolicy queryCachePolicy;
+    private boolean reportStatistics;
+    private boolean batch;
+    private boolean pipeline;
+    private int pipelineDepth;
+    private Arithmetic arithmetic;
+    private Engine fallback;
+    private long samples;
+    private double targetError;
+    private int chains;
+    private long seed;
+    private int burnIn;
+    private String circuitFile;
+
+    public InferenceOptions() {
+        this.engine = Engine.VARIABLE_ELIMINATION;
+        this.ordering = EliminationOrdering.Strategy.GIVEN;
+        this.maxFactorSize = Long.MAX_VALUE;
+        this.reportOrders = false;
+        this.threads = 1;
+        this.virtualThreads = false;
+        this.parallelThreshold = FactorKernels.DEFAULT_PARALLEL_THRESHOLD;
+        this.vectorization = FactorKernels.Vectorization.EXACT;
+        this.factorCacheBytes = 64L << 20;
+        this.queryCacheSize = 10_000;
+        this.queryCachePolicy = QueryCache.EvictionPolicy.LRU;
+        this.reportStatistics = false;
+        this.batch = false;
+        this.pipeline = false;
+        this.pipelineDepth = 8;
+        this.arithmetic = Arithmetic.DOUBLE;
+        this.fallback = null;
+        this.samples = 100_000;
+        this.targetError = 0;
+        this.chains = Runtime.getRuntime().availableProcessors();
+        this.seed = 1;
+        this.burnIn = 1000;
+        this.circuitFile = null;
+    }
+
+    // Throws IllegalArgumentException naming the property and the accepted values when one cannot be parsed or is
+    // out of range
+    public static InferenceOptions fromSystemProperties() {
+        String engines = "one of ve, jt, lw, gibbs, ac";
+        InferenceOptions options = new InferenceOptions();
+        String engine = System.getProperty("bn.engine");
+        if (engine != null) {
+            options.setEngine(parse("bn.engine", engine, Engine::parse, engines));
+        }
+        String ordering = System.getProperty("bn.ordering");
+        if (ordering != null) {
+            options.setOrdering(parse("bn.ordering", ordering, EliminationOrdering.Strategy::parse,
+                    names(EliminationOrdering.Strategy.values())));
+        }
+        options.setMaxFactorSize(number("bn.maxFactorSize", options.getMaxFactorSize(), 0, Long.MAX_VALUE,
+                "a number of entries"));
+        options.setReportOrders(Boolean.getBoolean("bn.reportOrders"));
+        options.setThreads((int) number("bn.threads", 1, 1, Integer.MAX_VALUE, "a positive number of threads"));
+        options.setParallelThreshold((int) number("bn.parallelThreshold", FactorKernels.DEFAULT_PARALLEL_THRESHOLD, 1,
+                Integer.MAX_VALUE, "a positive number of entries"));
+        String vectorization = System.getProperty("bn.vector");
+        if (vectorization != null) {
+            options.setVectorization(parse("bn.vector", vectorization, FactorKernels.Vectorization::parse,
+                    names(FactorKernels.Vectorization.values())));
+        }
+        options.setFactorCacheBytes(number("bn.factorCacheBytes", options.getFactorCacheBytes(), 0, Long.MAX_VALUE,
+                "a number of bytes, 0 to disable the cache"));
+        options.setQueryCacheSize((int) number("bn.queryCacheSize", options.getQueryCacheSize(), 0, Integer.MAX_VALUE,
+                "a number of answers, 0 to disable the cache"));
+        String queryCachePolicy = System.getProperty("bn.queryCachePolicy");
+        if (queryCachePolicy != null) {
+            options.setQueryCachePolicy(parse("bn.queryCachePolicy", queryCachePolicy, QueryCache.EvictionPolicy::parse,
+                    names(QueryCache.EvictionPolicy.values())));
+        }
+        options.setReportStatistics(Boolean.getBoolean("bn.reportStatistics"));
+        options.setBatch(Boolean.getBoolean("bn.batch"));
+        options.setPipeline(Boolean.getBoolean("bn.pipeline"));
+        options.setPipelineDepth((int) number("bn.pipelineDepth", options.getPipelineDepth(), 1, Integer.MAX_VALUE,
+                "a positive number of chunks"));
+        String arithmetic = System.getProperty("bn.arithmetic");
+        if (arithmetic != null) {
+            options.setArithmetic(parse("bn.arithmetic", arithmetic, Arithmetic::parse, names(Arithmetic.values())));
+        }
+        options.setVirtualThreads("virtual".equalsIgnoreCase(System.getProperty("bn.executor", "").trim()));
+        String fallback = System.getProperty("bn.fallback");
+        if (fallback != null) {
+            options.setFallback(parse("bn.fallback", fallback, Engine::parse, engines));
+        }
+        options.setSamples(number("bn.samples", options.getSamples(), 1, Long.MAX_VALUE, "a positive number of samples"));
+        String targetError = System.getProperty("bn.targetError");
+        if (targetError != null) {
+            options.setTargetError(parse("bn.targetError", targetError, value -> {
+                double parsed = Double.parseDouble(value.trim());
+                if (!(parsed >= 0) || Double.isInfinite(parsed)) {
+                    throw new IllegalArgumentException();
+                }
+                return parsed;
+            }, "a number of at least 0"));
+        }
+        options.setChains((int) number("bn.chains", options.getChains(), 1, Integer.MAX_VALUE, "a positive number of chains"));
+        options.setSeed(number("bn.seed", options.getSeed(), Long.MIN_VALUE, Long.MAX_VALUE, "a whole number"));
+        options.setBurnIn((int) number("bn.burnIn", options.getBurnIn(), 0, Integer.MAX_VALUE, "a number of sweeps"));
+        options.setCircuitFile(System.getProperty("bn.circuit"));
+        return options;
+    }
+
+    private static <T> T parse(String property, String value, Function<String, T> parser, String accepted) {
+        try {
+            return parser.apply(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid -D" + property + "=" + value + "; expected " + accepted);
+        }
+    }
+
+    // A whole-number option in [min, max], or the default when the property is not set
+    private static long number(String property, long defaultValue, long min, long max, String accepted) {
+        String value = System.getProperty(property);
+        if (value == null) {
+            return defaultValue;
+        }
+        return parse(property, value, text -> {
+            long parsed = Long.parseLong(text.trim());
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException();
+            }
+            return parsed;
+        }, accepted);
+    }
+
+    // Accepted spellings of an enum option, as the parsers read them
+    private static String names(Enum<?>[] values) {
+        return "one of " + Arrays.stream(values).map(value -> value.name().toLowerCase().replace('_', '-'))
+                .collect(Collectors.joining(", "));
+    }
+
+    // Engine used to answer the P(...) queries of a batch
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    // Strategy used to order the hidden variables; GIVEN keeps the order from the query line
+    public EliminationOrdering.Strategy getOrdering() {
+        return ordering;
+    }
+
+    public void setOrdering(EliminationOrdering.Strategy ordering) {
+        this.ordering = ordering;
+    }
+
+    // Queries whose predicted largest intermediate factor has more entries than this are rejected
+    public long getMaxFactorSize() {
+        return maxFactorSize;
+    }
+
+    public void setMaxFactorSize(long maxFactorSize) {
+        this.maxFactorSize = maxFactorSize;
+    }
+
+    // Print the predicted largest factor of every ordering strategy for each query
+    public boolean isReportOrders() {
+        return reportOrders;
+    }
+
+    public void setReportOrders(boolean reportOrders) {
+        this.reportOrders = reportOrders;
+    }
+
+    // Number of queries answered concurrently; 1 answers them one after another on the main thread
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Run each query on its own virtual thread instead of a fork-join pool of getThreads() workers
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    // Factors with at least this many entries are multiplied and summed on the common fork-join pool
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    // Use of the SIMD factor kernels, which also needs the JVM option --add-modules jdk.incubator.vector;
+    // RELAXED lets them reorder the terms of a sum
+    public FactorKernels.Vectorization getVectorization() {
+        return vectorization;
+    }
+
+    public void setVectorization(FactorKernels.Vectorization vectorization) {
+        this.vectorization = vectorization;
+    }
+
+    // Budget of the factor cache shared by the queries of a variable elimination engine, or in batch mode by all the
+    // evidence groups of the batch planner, however many run at once; 0 disables it
+    public long getFactorCacheBytes() {
+        return factorCacheBytes;
+    }
+
+    public void setFactorCacheBytes(long factorCacheBytes) {
+        this.factorCacheBytes = factorCacheBytes;
+    }
+
+    // Number of answers remembered in front of the engine; 0 disables the query cache, which batch mode bypasses
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public void setQueryCacheSize(int queryCacheSize) {
+        this.queryCacheSize = queryCacheSize;
+    }
+
+    // Which answer the query cache drops when it is full
+    public QueryCache.EvictionPolicy getQueryCachePolicy() {
+        return queryCachePolicy;
+    }
+
+    public void setQueryCachePolicy(QueryCache.EvictionPolicy queryCachePolicy) {
+        this.queryCachePolicy = queryCachePolicy;
+    }
+
+    // Print the engine's cache statistics to stderr after the batch
+    public boolean isReportStatistics() {
+        return reportStatistics;
+    }
+
+    public void setReportStatistics(boolean reportStatistics) {
+        this.reportStatistics = reportStatistics;
+    }
+
+    // Answer the P(...) queries of the input together, grouped by evidence; variable elimination only.
+    // The planner answers repeated lines once itself and does not use the query cache
+    public boolean isBatch() {
+        return batch;
+    }
+
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    // Read, answer and write the queries as concurrent stages instead of one after another
+    public boolean isPipeline() {
+        return pipeline;
+    }
+
+    public void setPipeline(boolean pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    // Most chunks of answers the pipeline holds between its reader and its writer; a few per worker is enough,
+    // and a deeper queue only keeps more parsed queries alive through young collections
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    public void setPipelineDepth(int pipelineDepth) {
+        this.pipelineDepth = Math.max(1, pipelineDepth);
+    }
+
+    // Number representation of the variable elimination factors
+    public Arithmetic getArithmetic() {
+        return arithmetic;
+    }
+
+    public void setArithmetic(Arithmetic arithmetic) {
+        this.arithmetic = arithmetic;
+    }
+
+    // Sampling engine that answers the queries variable elimination rejects, including the junction tree's eliminations
+    // of variables no clique holds; null rejects them
+    public Engine getFallback() {
+        return fallback;
+    }
+
+    public void setFallback(Engine fallback) {
+        this.fallback = fallback;
+    }
+
+    // Samples a sampling engine draws per query at most
+    public long getSamples() {
+        return samples;
+    }
+
+    public void setSamples(long samples) {
+        this.samples = samples;
+    }
+
+    // Sampling stops once the standard error of the answer is at most this; 0 always spends the whole budget
+    public double getTargetError() {
+        return targetError;
+    }
+
+    public void setTargetError(double targetError) {
+        this.targetError = targetError;
+    }
+
+    // Independent chains a sampling engine runs in parallel for each query
+    public int getChains() {
+        return chains;
+    }
+
+    public void setChains(int chains) {
+        this.chains = Math.max(1, chains);
+    }
+
+    // Seed of the random streams of the sampling engines
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    // Gibbs sweeps each chain discards before it starts counting
+    public int getBurnIn() {
+        return burnIn;
+    }
+
+    public void setBurnIn(int burnIn) {
+        this.burnIn = Math.max(0, burnIn);
+    }
+
+    // Arithmetic circuit written by CircuitCompiler for the circuit engine to load; null compiles one at start-up
+    public String getCircuitFile() {
+        return circuitFile;
+    }
+
+    public void setCircuitFile(String circuitFile) {
+        this.circuitFile = circuitFile;
+    }
+}
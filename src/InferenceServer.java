@@ -0,0 +1,318 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+// Resident server that loads its networks once and answers queries over a local socket, so batches no longer pay
+// for JVM start-up, parsing and JIT warm-up. One virtual thread per connection; the protocol is one request per line
+// and one answer line per request, in request order:
+//   B-E|J=T                 Bayes-Ball query, answered yes/no
+//   P(B=T|J=T,M=T) A-E      probability query, answered %.5f,additions,multiplications (or "rejected")
+//   USE <network>           switch this connection to another loaded network, answered "ok"
+//   NETWORKS                the loaded network names
+//   STATS                   throughput and latency counters as key=value pairs
+//   QUIT                    close the connection
+// Clients may pipeline: every request already received is answered as one batch and flushed once, and with
+// -Dbn.batch=true the P(...) queries of a batch go through the BatchPlanner together.
+//   java InferenceServer [--port 7070] [--bind 127.0.0.1] alarm=src/alarm_net.xml big=src/big_net.bnet ...
+public class InferenceServer implements Closeable {
+
+    // Most requests answered before the answers are flushed
+    private static final int MAX_BATCH = 1024;
+
+    private final Map<String, Served> networks = new LinkedHashMap<>();
+    private final ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    private ServerSocket serverSocket;
+    private final long startNanos = System.nanoTime();
+
+    private final LongAdder openConnections = new LongAdder();
+    private final LongAdder totalConnections = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder latencyNanos = new LongAdder();
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray latencyMicros = new AtomicLongArray(64);
+
+    public InferenceServer(Map<String, BayesianNetwork> networks, InferenceOptions options) {
+        if (networks.isEmpty()) {
+            throw new IllegalArgumentException("The server needs at least one network.");
+        }
+        for (Map.Entry<String, BayesianNetwork> entry : networks.entrySet()) {
+            this.networks.put(entry.getKey(), new Served(entry.getValue(), options));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        InferenceOptions options;
+        try {
+            options = InferenceOptions.fromSystemProperties();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return;
+        }
+        int port = 7070;
+        String bind = "127.0.0.1";
+        Map<String, BayesianNetwork> networks = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--bind") && i + 1 < args.length) {
+                bind = args[++i];
+            } else {
+                // name=path, or just a path named after its file
+                int split = args[i].indexOf('=');
+                Path file = Path.of(split < 0 ? args[i] : args[i].substring(split + 1));
+                String name = split < 0 ? networkName(file) : args[i].substring(0, split);
+                networks.put(name, Ex1.loadNetwork(file));
+            }
+        }
+        if (networks.isEmpty()) {
+            System.err.println("Usage: java InferenceServer [--port 7070] [--bind 127.0.0.1] [name=]network.xml|.bnet ...");
+            return;
+        }
+        InferenceServer server = new InferenceServer(networks, options);
+        server.start(new InetSocketAddress(InetAddress.getByName(bind), port));
+        System.err.println("Serving " + networks.keySet() + " on " + bind + ":" + server.getPort());
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(server.stats())));
+    }
+
+    // File name without its extension: src/alarm_net.xml is served as alarm_net
+    static String networkName(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    // Bind and accept connections on a background thread; port 0 picks a free port
+    public void start(InetSocketAddress address) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(address);
+        Thread.ofPlatform().name("inference-server-accept").start(this::acceptLoop);
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.submit(() -> serve(socket));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Accept failed: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        connections.shutdownNow();
+    }
+
+    // Answer every request already received as one batch, then flush once
+    private void serve(Socket socket) {
+        openConnections.increment();
+        totalConnections.increment();
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             BufferedWriter out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+            Session session = new Session(networks.values().iterator().next());
+            List<String> batch = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                batch.clear();
+                batch.add(line);
+                while (batch.size() < MAX_BATCH && in.ready()) {
+                    String next = in.readLine();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                boolean open = answer(batch, session, out);
+                out.flush();
+                if (!open) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            // The client went away; nothing to answer
+        } finally {
+            openConnections.decrement();
+        }
+    }
+
+    // Answers of one batch in request order; false once the client asked to QUIT
+    private boolean answer(List<String> batch, Session session, BufferedWriter out) throws IOException {
+        batches.increment();
+        String[] answers = new String[batch.size()];
+        // P(...) queries waiting for the planner, all on the network they were parsed for
+        List<BatchPlanner.Query> planned = new ArrayList<>();
+        List<Integer> plannedSlots = new ArrayList<>();
+        Served plannedFor = null;
+        long plannedStart = System.nanoTime();
+        int end = batch.size();
+        for (int i = 0; i < batch.size(); i++) {
+            String request = batch.get(i).trim();
+            if (request.isEmpty()) {
+                continue; // Like Ex1, blank lines get no answer
+            }
+            if (request.equals("QUIT")) {
+                end = i;
+                break;
+            }
+            long start = System.nanoTime();
+            try {
+                if (request.startsWith("P(") && session.served.planner != null) {
+                    // A USE since the pending queries were parsed: answer them on their own network first
+                    if (plannedFor != session.served && !planned.isEmpty()) {
+                        answerPlanned(planned, plannedSlots, plannedFor, answers, plannedStart);
+                        planned.clear();
+                        plannedSlots.clear();
+                        start = System.nanoTime();
+                    }
+                    if (planned.isEmpty()) {
+                        plannedFor = session.served;
+                        plannedStart = start;
+                    }
+                    planned.add(session.served.tokenizer.parseProbability(request));
+                    plannedSlots.add(i);
+                    continue;
+                }
+                answers[i] = answer(request, session);
+            } catch (RuntimeException e) {
+                errors.increment();
+                answers[i] = "error " + e.getMessage();
+            }
+            record(System.nanoTime() - start);
+        }
+        if (!planned.isEmpty()) {
+            answerPlanned(planned, plannedSlots, plannedFor, answers, plannedStart);
+        }
+        for (int i = 0; i < end; i++) {
+            if (answers[i] != null) {
+                out.write(answers[i]);
+                out.newLine();
+            }
+        }
+        return end == batch.size();
+    }
+
+    private String answer(String request, Session session) {
+        Served served = session.served;
+        if (request.startsWith("P(")) {
+            return Ex1.processVEQuery(request, served.tokenizer, served.engine);
+        }
+        String[] words = request.split("\\s+");
+        switch (words[0]) {
+            case "USE":
+                Served next = words.length == 2 ? networks.get(words[1]) : null;
+                if (next == null) {
+                    throw new IllegalArgumentException("unknown network " + (words.length > 1 ? words[1] : "") + "; loaded: " + networks.keySet());
+                }
+                session.served = next;
+                return "ok";
+            case "NETWORKS":
+                return String.join(",", networks.keySet());
+            case "STATS":
+                return stats();
+            default:
+                return Ex1.processBBQuery(request, served.tokenizer, served.bayesBall);
+        }
+    }
+
+    // P(...) queries of one network answered together by its planner; each is charged an equal share of the time
+    private void answerPlanned(List<BatchPlanner.Query> planned, List<Integer> slots, Served served, String[] answers,
+                               long start) {
+        try {
+            QueryResult[] results = served.planner.answer(planned, null);
+            for (int j = 0; j < results.length; j++) {
+                answers[slots.get(j)] = results[j] == null ? "rejected" : results[j].toString();
+            }
+        } catch (Exception e) {
+            errors.add(planned.size());
+            for (int slot : slots) {
+                answers[slot] = "error " + e.getMessage();
+            }
+        }
+        long share = (System.nanoTime() - start) / planned.size();
+        for (int j = 0; j < planned.size(); j++) {
+            record(share);
+        }
+    }
+
+    private void record(long nanos) {
+        requests.increment();
+        latencyNanos.add(nanos);
+        maxLatencyNanos.accumulate(nanos);
+        latencyMicros.incrementAndGet(Math.min(63, 64 - Long.numberOfLeadingZeros(nanos / 1000)));
+    }
+
+    // One line of counters; latency percentiles are the upper bounds of power-of-two buckets
+    public String stats() {
+        long count = requests.sum();
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        return String.format("connections=%d open=%d requests=%d batches=%d errors=%d throughput=%.1f/s "
+                        + "mean_us=%.1f p50_us<=%d p99_us<=%d max_us=%.1f",
+                totalConnections.sum(), openConnections.sum(), count, batches.sum(), errors.sum(), count / seconds,
+                count == 0 ? 0.0 : latencyNanos.sum() / 1e3 / count, percentile(0.50), percentile(0.99),
+                maxLatencyNanos.get() / 1e3);
+    }
+
+    private long percentile(double quantile) {
+        long total = 0;
+        for (int b = 0; b < 64; b++) {
+            total += latencyMicros.get(b);
+        }
+        long seen = 0;
+        for (int b = 0; b < 64; b++) {
+            seen += latencyMicros.get(b);
+            if (total > 0 && seen >= quantile * total) {
+                return 1L << Math.min(62, b);
+            }
+        }
+        return 0;
+    }
+
+    // A loaded network with everything that answers its queries, shared by all connections
+    private static final class Served {
+        final BayesianNetwork network;
+        final InferenceEngine engine;
+        final BayesBall bayesBall;
+        final QueryTokenizer tokenizer;
+        final BatchPlanner planner;
+
+        Served(BayesianNetwork network, InferenceOptions options) {
+            this.network = network;
+            this.engine = InferenceEngine.create(network, options);
+            this.bayesBall = new BayesBall(network);
+            this.tokenizer = new QueryTokenizer(network);
+            this.planner = options.isBatch() && options.getEngine() == InferenceOptions.Engine.VARIABLE_ELIMINATION
+                    ? new BatchPlanner(network, options)
+                    : null;
+        }
+    }
+
+    // Per-connection state: the network USE selected
+    private static final class Session {
+        Served served;
+
+        Session(Served served) {
+            this.served = served;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.util.*;
+
+// Evidence that arrives one observation at a time, with posteriors read in between.
+// The session owns a junction tree over the network and its own messages, kept between calls from any thread, so
+// adding or retracting an observation only resends the messages that depend on that variable.
+public class InferenceSession {
+    private final BayesianNetwork network;
+    private final JunctionTree tree;
+    private final JunctionTree.Calibration calibration;
+    private final Map<String, String> evidence;
+
+    public InferenceSession(BayesianNetwork network) {
+        this.network = network;
+        this.tree = new JunctionTree(network);
+        this.calibration = tree.newCalibration();
+        this.evidence = new HashMap<>();
+    }
+
+    // Observe a variable, replacing any earlier observation of it
+    public synchronized void addEvidence(String variable, String value) {
+        BayesianNode node = network.getNode(variable);
+        if (node == null) {
+            throw new IllegalArgumentException("No variable named " + variable);
+        }
+        if (!node.getOutcomes().contains(value)) {
+            throw new IllegalArgumentException(variable + " has no outcome " + value);
+        }
+        evidence.put(variable, value);
+    }
+
+    // Forget the observation of a variable; returns false if it was not observed
+    public synchronized boolean retractEvidence(String variable) {
+        return evidence.remove(variable) != null;
+    }
+
+    public synchronized void clearEvidence() {
+        evidence.clear();
+    }
+
+    public synchronized Map<String, String> getEvidence() {
+        return Collections.unmodifiableMap(new HashMap<>(evidence));
+    }
+
+    // Distribution of unobserved variables given the evidence so far.
+    // The counts are the work done since the previous call, from any thread, not that of a full calibration;
+    // variables that share no clique are answered by a whole elimination and counted as such.
+    public synchronized Posterior posterior(List<String> variables) {
+        return tree.updatedPosterior(calibration, variables, evidence);
+    }
+
+    public Posterior posterior(String variable) {
+        return posterior(List.of(variable));
+    }
+}
@@ -0,0 +1,547 @@
+import java.util.*;
+
+// Junction-tree inference with Shafer-Shenoy message passing.
+// The network is moralized and triangulated once; calibrating against an evidence set sends one message
+// each way over every tree edge, after which any single-variable posterior is a marginal of one clique belief.
+// Messages are kept between calibrations: when the evidence changes, only the messages whose sending side
+// holds a changed variable are sent again, and clique beliefs are rebuilt when they are next read.
+// Query variables that no single clique holds are answered by variable elimination instead.
+// Engine queries keep messages and beliefs per thread, so queries from several threads run side by side; an
+// InferenceSession holds its own instead, whatever thread calls it. The clique potentials are shared, and rebuilt
+// once when the network's tables change.
+public class JunctionTree implements InferenceEngine {
+    private final BayesianNetwork network;
+    private final InferenceOptions options;
+    private final List<Clique> cliques;
+    private final List<Edge> edges;
+    private final List<Edge> upwardOrder;
+    private final List<Edge> downwardOrder;
+    private final List<Clique> roots;
+    private final int[] calibrationCounts;
+    private volatile Potentials potentials;
+    private final ThreadLocal<Calibration> calibrations = ThreadLocal.withInitial(() -> new Calibration(this));
+
+    public JunctionTree(BayesianNetwork network) {
+        this(network, new InferenceOptions());
+    }
+
+    // The options only apply to the variable elimination that answers queries no clique holds
+    public JunctionTree(BayesianNetwork network, InferenceOptions options) {
+        this.network = network;
+        this.options = options;
+        this.cliques = new ArrayList<>();
+        this.edges = new ArrayList<>();
+        this.upwardOrder = new ArrayList<>();
+        this.downwardOrder = new ArrayList<>();
+        this.roots = new ArrayList<>();
+        buildCliques();
+        buildTree();
+        // The first potentials are the clique factors' own all-ones tables
+        long version = network.getVersion();
+        double[][] tables = new double[cliques.size()][];
+        for (Clique clique : cliques) {
+            tables[clique.index] = clique.potential.getValues();
+        }
+        assignCPTs(tables);
+        potentials = new Potentials(version, tables);
+        calibrationCounts = fullCalibrationCounts();
+    }
+
+    // The potential factor gives the clique's variables and table layout; its values are only those of the
+    // first Potentials
+    private static final class Clique {
+        final int index;
+        final Factor potential;
+        final List<Edge> incoming = new ArrayList<>();
+
+        Clique(int index, Factor potential) {
+            this.index = index;
+            this.potential = potential;
+        }
+    }
+
+    // A directed tree edge; the message has the layout of the separator factor
+    private static final class Edge {
+        final int index;
+        final Clique from;
+        final Clique to;
+        final Factor separator;
+        final BitSet upstream = new BitSet(); // Variables of every clique on the sender's side
+        final int[] fromStrides;
+        final int[] toStrides;
+
+        Edge(int index, Clique from, Clique to, Factor separator) {
+            this.index = index;
+            this.from = from;
+            this.to = to;
+            this.separator = separator;
+            this.fromStrides = separator.stridesAlong(from.potential.getIds());
+            this.toStrides = separator.stridesAlong(to.potential.getIds());
+        }
+    }
+
+    // Every CPT multiplied into its clique's table, for one version of the network's tables; never written after
+    // it is built, so all threads read it
+    private static final class Potentials {
+        final long version;
+        final double[][] tables;
+
+        Potentials(long version, double[][] tables) {
+            this.version = version;
+            this.tables = tables;
+        }
+    }
+
+    // One thread's or session's messages (by edge) and beliefs (by clique), and the potentials and evidence they
+    // were built from; only usable with the tree that made it, and by one caller at a time
+    static final class Calibration {
+        private final JunctionTree tree;
+        private final double[][] messages;
+        private final double[][] beliefs;
+        private Potentials potentials;
+        private Map<String, String> evidence;
+
+        private Calibration(JunctionTree tree) {
+            this.tree = tree;
+            this.messages = new double[tree.edges.size()][];
+            this.beliefs = new double[tree.cliques.size()][];
+        }
+    }
+
+    // Triangulate the moral graph with min-fill and keep the maximal elimination cliques
+    private void buildCliques() {
+        EliminationOrdering ordering = new EliminationOrdering(network);
+        List<String> order = ordering.order(EliminationOrdering.Strategy.MIN_FILL, ordering.getVariables());
+        for (Set<String> clique : ordering.eliminationCliques(order)) {
+            List<String> variables = new ArrayList<>(clique);
+            variables.sort(Comparator.comparingInt(network::getId));
+            Factor potential = newFactor(variables);
+            Arrays.fill(potential.getValues(), 1.0);
+            cliques.add(new Clique(cliques.size(), potential));
+        }
+    }
+
+    // Maximum-weight spanning forest over separator sizes (Kruskal), then a root-first order per tree
+    private void buildTree() {
+        List<int[]> candidates = new ArrayList<>();
+        for (int i = 0; i < cliques.size(); i++) {
+            for (int j = i + 1; j < cliques.size(); j++) {
+                int shared = sharedVariables(cliques.get(i), cliques.get(j)).size();
+                if (shared > 0) {
+                    candidates.add(new int[]{shared, i, j});
+                }
+            }
+        }
+        candidates.sort((a, b) -> Integer.compare(b[0], a[0]));
+
+        int[] component = new int[cliques.size()];
+        for (int i = 0; i < component.length; i++) {
+            component[i] = i;
+        }
+        List<List<Integer>> adjacency = new ArrayList<>();
+        for (int i = 0; i < cliques.size(); i++) {
+            adjacency.add(new ArrayList<>());
+        }
+        for (int[] candidate : candidates) {
+            int a = find(component, candidate[1]);
+            int b = find(component, candidate[2]);
+            if (a != b) {
+                component[a] = b;
+                adjacency.get(candidate[1]).add(candidate[2]);
+                adjacency.get(candidate[2]).add(candidate[1]);
+            }
+        }
+
+        // Breadth-first from each root: upward messages run in reverse of that order, downward ones in it
+        boolean[] visited = new boolean[cliques.size()];
+        for (int root = 0; root < cliques.size(); root++) {
+            if (visited[root]) {
+                continue;
+            }
+            visited[root] = true;
+            roots.add(cliques.get(root));
+            Deque<Integer> queue = new ArrayDeque<>();
+            queue.add(root);
+            while (!queue.isEmpty()) {
+                int parent = queue.poll();
+                for (int child : adjacency.get(parent)) {
+                    if (!visited[child]) {
+                        visited[child] = true;
+                        queue.add(child);
+                        Factor separator = newFactor(sharedVariables(cliques.get(parent), cliques.get(child)));
+                        Edge up = addEdge(cliques.get(child), cliques.get(parent), separator);
+                        Edge down = addEdge(cliques.get(parent), cliques.get(child), separator);
+                        upwardOrder.add(0, up);
+                        downwardOrder.add(down);
+                    }
+                }
+            }
+        }
+        computeUpstream();
+    }
+
+    // The variables a message depends on, in message order so the sender's other inputs are already known
+    private void computeUpstream() {
+        List<Edge> order = new ArrayList<>(upwardOrder);
+        order.addAll(downwardOrder);
+        for (Edge edge : order) {
+            for (int id : edge.from.potential.getIds()) {
+                edge.upstream.set(id);
+            }
+            for (Edge in : edge.from.incoming) {
+                if (in.from != edge.to) {
+                    edge.upstream.or(in.upstream);
+                }
+            }
+        }
+    }
+
+    // {additions, multiplications} of sending every message and building every belief; evidence only zeroes
+    // entries, so this is the same for every evidence set
+    private int[] fullCalibrationCounts() {
+        int[] counts = new int[2];
+        List<Edge> order = new ArrayList<>(upwardOrder);
+        order.addAll(downwardOrder);
+        for (Edge edge : order) {
+            int size = edge.from.potential.tableSize();
+            counts[1] += size * (edge.from.incoming.size() - 1);
+            counts[0] += size - edge.separator.tableSize();
+        }
+        for (Clique clique : cliques) {
+            counts[1] += clique.potential.tableSize() * clique.incoming.size();
+        }
+        return counts;
+    }
+
+    private Edge addEdge(Clique from, Clique to, Factor separator) {
+        Edge edge = new Edge(edges.size(), from, to, separator);
+        edges.add(edge);
+        to.incoming.add(edge);
+        return edge;
+    }
+
+    private static int find(int[] component, int i) {
+        while (component[i] != i) {
+            component[i] = component[component[i]];
+            i = component[i];
+        }
+        return i;
+    }
+
+    private static List<String> sharedVariables(Clique a, Clique b) {
+        List<String> shared = new ArrayList<>(a.potential.getVariables());
+        shared.retainAll(b.potential.getVariables());
+        return shared;
+    }
+
+    // Multiply every CPT into the table of one clique that covers its family; the tables start as all ones
+    private void assignCPTs(double[][] tables) {
+        for (BayesianNode node : network.getNodes()) {
+            List<String> family = new ArrayList<>(node.getGiven());
+            family.add(node.getName());
+            Factor cpt = newFactor(family);
+            node.getProbabilities().get(0, cpt.getValues());
+            Clique home = cliques.stream()
+                    .filter(c -> c.potential.getVariables().containsAll(family))
+                    .findFirst()
+                    .orElseThrow(() -> new IllegalStateException("No clique covers the family of " + node.getName()));
+            Factor potential = home.potential;
+            FactorKernels.multiplyInto(tables[home.index], potential.getCardinalities(), cpt.getValues(),
+                    cpt.stridesAlong(potential.getIds()));
+        }
+    }
+
+    // Bring this thread's messages up to date with this evidence; returns the {additions, multiplications} a full
+    // calibration costs, whatever part of it was actually redone, so answers do not depend on the order of the queries.
+    public int[] calibrate(Map<String, String> evidence) {
+        return calibrate(calibrations.get(), evidence);
+    }
+
+    private int[] calibrate(Calibration calibration, Map<String, String> evidence) {
+        long start = System.nanoTime();
+        update(calibration, evidence, new int[2]);
+        InferenceMetrics.phase(InferenceMetrics.Phase.CALIBRATE, System.nanoTime() - start);
+        return calibrationCounts.clone();
+    }
+
+    // The potentials for the network's current tables, rebuilt by the first thread to see a change
+    private Potentials potentials() {
+        Potentials current = potentials;
+        if (current.version != network.getVersion()) {
+            synchronized (this) {
+                current = potentials;
+                if (current.version != network.getVersion()) {
+                    long version = network.getVersion();
+                    double[][] tables = new double[cliques.size()][];
+                    for (Clique clique : cliques) {
+                        tables[clique.index] = new double[clique.potential.tableSize()];
+                        Arrays.fill(tables[clique.index], 1.0);
+                    }
+                    assignCPTs(tables);
+                    current = new Potentials(version, tables);
+                    potentials = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Resend the messages the evidence change affects, adding the work actually done to 'work'
+    private void update(Calibration calibration, Map<String, String> evidence, int[] work) {
+        Potentials current = potentials();
+        if (calibration.potentials != current) {
+            // A table changed since this thread last calibrated: drop the old messages
+            calibration.potentials = current;
+            calibration.evidence = null;
+        }
+        if (evidence.equals(calibration.evidence)) {
+            return;
+        }
+        if (calibration.evidence == null) {
+            invalidateAll(calibration);
+        } else {
+            BitSet changed = new BitSet(network.size());
+            Set<String> variables = new HashSet<>(evidence.keySet());
+            variables.addAll(calibration.evidence.keySet());
+            for (String variable : variables) {
+                int id = network.getId(variable);
+                if (id >= 0 && !Objects.equals(evidence.get(variable), calibration.evidence.get(variable))) {
+                    changed.set(id);
+                }
+            }
+            invalidate(calibration, changed);
+        }
+        calibration.evidence = new HashMap<>(evidence);
+
+        // Stale messages come after the messages they are built from in this order
+        for (Edge edge : upwardOrder) {
+            if (calibration.messages[edge.index] == null) {
+                sendMessage(calibration, edge, work);
+            }
+        }
+        for (Edge edge : downwardOrder) {
+            if (calibration.messages[edge.index] == null) {
+                sendMessage(calibration, edge, work);
+            }
+        }
+    }
+
+    private static void invalidateAll(Calibration calibration) {
+        Arrays.fill(calibration.messages, null);
+        Arrays.fill(calibration.beliefs, null);
+    }
+
+    // Drop the messages that depend on a changed variable, and the beliefs of cliques holding one or receiving them
+    private void invalidate(Calibration calibration, BitSet changed) {
+        for (Clique clique : cliques) {
+            for (int id : clique.potential.getIds()) {
+                if (changed.get(id)) {
+                    calibration.beliefs[clique.index] = null;
+                    break;
+                }
+            }
+            for (Edge in : clique.incoming) {
+                if (in.upstream.intersects(changed)) {
+                    calibration.messages[in.index] = null;
+                    calibration.beliefs[clique.index] = null;
+                }
+            }
+        }
+    }
+
+    // Message: the sender's potential times all its other incoming messages, summed onto the separator
+    private void sendMessage(Calibration calibration, Edge edge, int[] counts) {
+        double[] table = collect(calibration, edge.from, edge.to, counts);
+        double[] message = new double[edge.separator.tableSize()];
+        FactorKernels.marginalize(table, edge.from.potential.getCardinalities(), edge.fromStrides, message);
+        counts[0] += table.length - message.length;
+        calibration.messages[edge.index] = message;
+    }
+
+    // Belief of a clique under the current evidence, rebuilt if a message into it has changed
+    private double[] belief(Calibration calibration, Clique clique, int[] counts) {
+        if (calibration.beliefs[clique.index] == null) {
+            calibration.beliefs[clique.index] = collect(calibration, clique, null, counts);
+        }
+        return calibration.beliefs[clique.index];
+    }
+
+    // Evidence-restricted potential of a clique times its incoming messages, except the one from 'skip'
+    private double[] collect(Calibration calibration, Clique clique, Clique skip, int[] counts) {
+        Factor potential = clique.potential;
+        double[] table = calibration.potentials.tables[clique.index].clone();
+        applyEvidence(potential, table, calibration.evidence);
+        for (Edge in : clique.incoming) {
+            if (in.from != skip) {
+                FactorKernels.multiplyInto(table, potential.getCardinalities(), calibration.messages[in.index], in.toStrides);
+                counts[1] += table.length;
+            }
+        }
+        return table;
+    }
+
+    // Zero the entries that disagree with the evidence on the clique's variables
+    private static void applyEvidence(Factor potential, double[] table, Map<String, String> evidence) {
+        List<String> variables = potential.getVariables();
+        for (int i = 0; i < variables.size(); i++) {
+            String value = evidence.get(variables.get(i));
+            if (value == null) {
+                continue;
+            }
+            int outcome = potential.getDomains().get(i).indexOf(value);
+            int inner = potential.getStrides()[i];
+            int block = inner * potential.getCardinalities()[i];
+            for (int base = 0; base < table.length; base += block) {
+                for (int k = 0; k < block; k++) {
+                    if (k / inner != outcome) {
+                        table[base + k] = 0.0;
+                    }
+                }
+            }
+        }
+    }
+
+    // Normalized posterior of one variable under this thread's current calibration
+    public double[] posterior(String variable) {
+        int[] work = new int[2];
+        Factor marginal = marginal(calibrations.get(), List.of(variable), work, work);
+        return marginal.getValues();
+    }
+
+    @Override
+    public Posterior posterior(List<String> queryVariables, Map<String, String> evidence) {
+        Posterior.checkQuery(queryVariables, evidence);
+        if (covering(queryVariables) == null) {
+            return VariableElimination.posterior(network, queryVariables, evidence, options, null);
+        }
+        Calibration calibration = calibrations.get();
+        int[] counts = calibrate(calibration, evidence);
+        return posterior(calibration, queryVariables, new int[2], counts);
+    }
+
+    // Messages and beliefs for a caller that keeps them between its own queries, across threads
+    Calibration newCalibration() {
+        return new Calibration(this);
+    }
+
+    // Posterior after an evidence change since the calibration's previous update, counting only the work this
+    // update actually did
+    Posterior updatedPosterior(Calibration calibration, List<String> queryVariables, Map<String, String> evidence) {
+        if (calibration.tree != this) {
+            throw new IllegalArgumentException("The calibration belongs to another junction tree.");
+        }
+        Posterior.checkQuery(queryVariables, evidence);
+        if (covering(queryVariables) == null) {
+            return VariableElimination.posterior(network, queryVariables, evidence, options, null);
+        }
+        int[] work = new int[2];
+        update(calibration, evidence, work);
+        return posterior(calibration, queryVariables, work, work);
+    }
+
+    // Joint of variables that share a clique, and P(evidence): the product over the trees of the forest
+    // of the total of one clique belief, which all cliques of a calibrated tree agree on.
+    // Rebuilding beliefs is charged to 'work', the sums to 'counts'.
+    private Posterior posterior(Calibration calibration, List<String> queryVariables, int[] work, int[] counts) {
+        double evidenceProbability = 1;
+        for (Clique root : roots) {
+            double[] belief = belief(calibration, root, work);
+            double total = 0;
+            for (double value : belief) {
+                total += value;
+            }
+            counts[0] += belief.length - 1;
+            evidenceProbability *= total;
+        }
+        if (evidenceProbability == 0) {
+            throw new IllegalStateException("The evidence has probability zero.");
+        }
+        Factor marginal = marginal(calibration, queryVariables, work, counts);
+        return new Posterior(marginal, evidenceProbability, counts[0], counts[1]);
+    }
+
+    @Override
+    public QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+        InferenceEvents.Query event = new InferenceEvents.Query();
+        event.begin();
+        long start = System.nanoTime();
+        List<String> variables = new ArrayList<>(queryVariables.keySet());
+        QueryResult result;
+        int[] counts;
+        if (covering(variables) == null) {
+            // The caller's elimination order, as the variable elimination engine would use it
+            VariableElimination ve = new VariableElimination(network, new HashMap<>(evidence), new HashMap<>(queryVariables),
+                    new ArrayList<>(hiddenVariables), options);
+            double probability = ve.run();
+            counts = new int[]{ve.getAdditionCount(), ve.getMultiplicationCount()};
+            result = new QueryResult(probability, counts[0], counts[1]);
+        } else {
+            Calibration calibration = calibrations.get();
+            counts = calibrate(calibration, evidence);
+            Factor marginal = marginal(calibration, variables, new int[2], counts);
+            List<String> outcomes = new ArrayList<>();
+            for (String variable : variables) {
+                outcomes.add(queryVariables.get(variable));
+            }
+            result = new QueryResult(marginal.getProbability(outcomes), counts[0], counts[1]);
+        }
+
+        InferenceMetrics.query(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.engine = "jt";
+            event.query = queryVariables + " | " + evidence;
+            event.evidence = evidence.size();
+            event.additions = counts[0];
+            event.multiplications = counts[1];
+            event.commit();
+        }
+        return result;
+    }
+
+    // Sum the smallest clique belief that holds all the variables onto them and normalize
+    private Factor marginal(Calibration calibration, List<String> variables, int[] work, int[] counts) {
+        if (calibration.evidence == null) {
+            throw new IllegalStateException("The junction tree has not been calibrated.");
+        }
+        Clique best = covering(variables);
+        if (best == null) {
+            throw new IllegalStateException("No clique contains all of " + variables);
+        }
+        double[] belief = belief(calibration, best, work);
+        Factor marginal = newFactor(variables);
+        double[] values = marginal.getValues();
+        FactorKernels.marginalize(belief, best.potential.getCardinalities(), marginal.stridesAlong(best.potential.getIds()), values);
+        counts[0] += belief.length - values.length;
+
+        double sum = 0;
+        for (double value : values) {
+            sum += value;
+        }
+        counts[0] += values.length - 1;
+        FactorKernels.divide(values, sum);
+        return marginal;
+    }
+
+    // Smallest clique that holds all the variables, or null
+    private Clique covering(List<String> variables) {
+        Clique best = null;
+        for (Clique clique : cliques) {
+            if (clique.potential.getVariables().containsAll(variables)
+                    && (best == null || clique.potential.tableSize() < best.potential.tableSize())) {
+                best = clique;
+            }
+        }
+        return best;
+    }
+
+    private Factor newFactor(List<String> variables) {
+        int[] ids = new int[variables.size()];
+        List<List<String>> domains = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = network.getId(variables.get(i));
+            domains.add(network.getNode(ids[i]).getOutcomes());
+        }
+        return new Factor(variables, ids, domains);
+    }
+}
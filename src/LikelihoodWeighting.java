@@ -0,0 +1,69 @@
+import java.util.List;
+import java.util.SplittableRandom;
+
+// Likelihood weighting: sample the unobserved nodes in topological order, clamp the observed ones and weight each
+// sample by the probability of the evidence given its parents. The mean weight estimates P(evidence).
+public class LikelihoodWeighting extends Sampler {
+
+    public LikelihoodWeighting(BayesianNetwork network, InferenceOptions options) {
+        super(network, options);
+    }
+
+    @Override
+    protected String name() {
+        return "lw";
+    }
+
+    @Override
+    protected Chain newChain(Tables tables, Plan plan, SplittableRandom random) {
+        return new WeightingChain(tables, plan, random);
+    }
+
+    // Delta-method error of the ratio sum(w y) / sum(w) with y the indicator of the configuration
+    @Override
+    protected double standardError(List<Tally> batches, Tally total, int config) {
+        double p = total.weights[config] / total.total;
+        double variance = total.squares[config] * (1 - 2 * p) + p * p * total.totalSquares;
+        return Math.sqrt(Math.max(0, variance)) / total.total;
+    }
+
+    @Override
+    protected double evidenceProbability(Tally total) {
+        return total.total / total.samples;
+    }
+
+    private static final class WeightingChain extends Chain {
+        private final Tables tables;
+        private final Plan plan;
+        private final int[] state;
+
+        WeightingChain(Tables tables, Plan plan, SplittableRandom random) {
+            super(random);
+            this.tables = tables;
+            this.plan = plan;
+            this.state = new int[tables.cardinalities.length];
+        }
+
+        @Override
+        protected void sample(int count, Tally tally) {
+            int[] order = plan.order;
+            int[] evidence = plan.evidence;
+            for (int s = 0; s < count; s++) {
+                double weight = 1;
+                for (int id : order) {
+                    int row = tables.row(id, state);
+                    if (evidence[id] >= 0) {
+                        state[id] = evidence[id];
+                        weight *= tables.probabilities[id][row * tables.cardinalities[id] + evidence[id]];
+                        if (weight == 0) {
+                            break;
+                        }
+                    } else {
+                        state[id] = tables.draw(id, row, random.nextDouble());
+                    }
+                }
+                tally.add(weight > 0 ? plan.config(state) : 0, weight);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+// Compiled binary form of a network, loaded by memory-mapping the file.
+// Layout (little-endian): magic, version, node count, then per node its name, outcomes, parent ids and the
+// byte offset and length of its CPT; the CPTs follow as one 8-byte aligned block of doubles. The loader keeps
+// the CPTs as views of the mapping, so they are read in place and shared through the page cache.
+public class NetworkSnapshot {
+    public static final String EXTENSION = ".bnet";
+    private static final int MAGIC = 0x424E4554; // "BNET"
+    private static final int VERSION = 1;
+    private static final int NODE_HEADER_BYTES = 24; // Name length, outcome and parent counts, table offset and length
+
+    private NetworkSnapshot() {
+    }
+
+    // Convert an XMLBIF file: java NetworkSnapshot in.xml out.bnet
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java NetworkSnapshot <network.xml> <network" + EXTENSION + ">");
+            return;
+        }
+        write(XMLParser.parseXML(args[0]), Path.of(args[1]));
+    }
+
+    public static void write(BayesianNetwork network, Path file) throws IOException {
+        List<BayesianNode> nodes = network.getNodes();
+
+        // Header size first, so every table offset is known before anything is written
+        int headerSize = 12;
+        for (BayesianNode node : nodes) {
+            headerSize += stringSize(node.getName()) + 4;
+            for (String outcome : node.getOutcomes()) {
+                headerSize += stringSize(outcome);
+            }
+            headerSize += 4 + 4 * node.getGiven().size() + 8 + 4;
+        }
+        long tablesStart = (headerSize + 7L) & ~7L;
+
+        ByteBuffer header = ByteBuffer.allocate((int) tablesStart).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(nodes.size());
+        long offset = tablesStart;
+        for (BayesianNode node : nodes) {
+            putString(header, node.getName());
+            header.putInt(node.getOutcomes().size());
+            for (String outcome : node.getOutcomes()) {
+                putString(header, outcome);
+            }
+            header.putInt(node.getGiven().size());
+            for (String parent : node.getGiven()) {
+                header.putInt(network.getId(parent));
+            }
+            int length = node.getProbabilities().limit();
+            header.putLong(offset).putInt(length);
+            offset += 8L * length;
+        }
+        header.position(0);
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header);
+            ByteBuffer chunk = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+            for (BayesianNode node : nodes) {
+                DoubleBuffer table = node.getProbabilities();
+                for (int i = 0; i < table.limit(); i++) {
+                    if (chunk.remaining() < 8) {
+                        chunk.flip();
+                        writeFully(channel, chunk);
+                        chunk.clear();
+                    }
+                    chunk.putDouble(table.get(i));
+                }
+            }
+            chunk.flip();
+            writeFully(channel, chunk);
+        }
+    }
+
+    public static BayesianNetwork load(Path file) throws IOException {
+        InferenceEvents.Load event = new InferenceEvents.Load();
+        event.begin();
+        long start = System.nanoTime();
+        BayesianNetwork network = map(file);
+        long bytes = Files.size(file);
+        InferenceMetrics.load(bytes, System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file.toString();
+            event.bytes = bytes;
+            event.nodes = network.size();
+            event.commit();
+        }
+        return network;
+    }
+
+    private static BayesianNetwork map(Path file) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + ": snapshots larger than 2 GB are not supported");
+            }
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (mapped.limit() < 12 || mapped.getInt() != MAGIC) {
+            throw new IOException(file + ": not a network snapshot");
+        }
+        int version = mapped.getInt();
+        if (version != VERSION) {
+            throw new IOException(file + ": unsupported snapshot version " + version);
+        }
+
+        // Every count and id is checked against what is left of the file before it is used, so a truncated or
+        // corrupt snapshot is reported here rather than failing later with an index or underflow exception
+        int count = getCount(mapped, NODE_HEADER_BYTES, file, "nodes");
+        BayesianNetwork network = new BayesianNetwork();
+        int[][] parents = new int[count][];
+        for (int i = 0; i < count; i++) {
+            String name = getString(mapped, file);
+            int outcomeCount = getCount(mapped, 4, file, "outcomes");
+            List<String> outcomes = new ArrayList<>(outcomeCount);
+            for (int j = 0; j < outcomeCount; j++) {
+                outcomes.add(getString(mapped, file));
+            }
+            parents[i] = new int[getCount(mapped, 4, file, "parents")];
+            for (int j = 0; j < parents[i].length; j++) {
+                parents[i][j] = mapped.getInt();
+                if (parents[i][j] < 0 || parents[i][j] >= count) {
+                    throw new IOException(file + ": parent id " + parents[i][j] + " of " + name + " is not one of the "
+                            + count + " nodes");
+                }
+            }
+            require(mapped, 12, file);
+            long offset = mapped.getLong();
+            int length = mapped.getInt();
+            if (offset < 0 || length < 0 || offset + 8L * length > mapped.limit()) {
+                throw new IOException(file + ": table of " + name + " lies outside the file");
+            }
+
+            BayesianNode node = new BayesianNode(name, outcomes, new ArrayList<>());
+            node.setProbabilities(mapped.slice((int) offset, 8 * length).order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer());
+            network.addNode(node);
+        }
+
+        for (int i = 0; i < count; i++) {
+            BayesianNode node = network.getNode(i);
+            List<String> given = new ArrayList<>(parents[i].length);
+            long expected = node.getOutcomes().size();
+            for (int parent : parents[i]) {
+                given.add(network.getNode(parent).getName());
+                expected *= network.getNode(parent).getOutcomes().size();
+            }
+            if (node.getProbabilities().limit() != expected) {
+                throw new IOException(file + ": table of " + node.getName() + " has " + node.getProbabilities().limit()
+                        + " entries, expected " + expected);
+            }
+            node.setGiven(given);
+        }
+        try {
+            network.freeze();
+        } catch (IllegalStateException e) {
+            throw new IOException(file + ": " + e.getMessage(), e);
+        }
+        return network;
+    }
+
+    private static int stringSize(String s) {
+        return 4 + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    private static void putString(ByteBuffer buffer, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buffer.putInt(bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer, Path file) throws IOException {
+        byte[] bytes = new byte[getCount(buffer, 1, file, "name bytes")];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // A count of items of at least 'unit' bytes each, which must all fit in the rest of the file
+    private static int getCount(ByteBuffer buffer, int unit, Path file, String what) throws IOException {
+        require(buffer, 4, file);
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining() / unit) {
+            throw new IOException(file + ": " + count + " " + what + " do not fit in the file; it is truncated or corrupt");
+        }
+        return count;
+    }
+
+    private static void require(ByteBuffer buffer, int bytes, Path file) throws IOException {
+        if (buffer.remaining() < bytes) {
+            throw new IOException(file + ": the header ends early; the file is truncated or corrupt");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
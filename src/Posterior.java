@@ -0,0 +1,78 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Normalized joint distribution of the query variables given the evidence, with P(evidence) and the work spent
+public class Posterior {
+    private final Factor distribution;
+    private final double evidenceProbability;
+    private final double logEvidenceProbability;
+    private final int additionCount;
+    private final int multiplicationCount;
+
+    public Posterior(Factor distribution, double evidenceProbability, int additionCount, int multiplicationCount) {
+        this(distribution, evidenceProbability, Math.log(evidenceProbability), additionCount, multiplicationCount);
+    }
+
+    // For engines that know ln P(evidence) even when P(evidence) itself underflows
+    public Posterior(Factor distribution, double evidenceProbability, double logEvidenceProbability, int additionCount,
+                     int multiplicationCount) {
+        this.distribution = distribution;
+        this.evidenceProbability = evidenceProbability;
+        this.logEvidenceProbability = logEvidenceProbability;
+        this.additionCount = additionCount;
+        this.multiplicationCount = multiplicationCount;
+    }
+
+    // A query variable cannot also be observed
+    static void checkQuery(List<String> variables, Map<String, String> evidence) {
+        if (variables.isEmpty()) {
+            throw new IllegalArgumentException("A posterior needs at least one query variable.");
+        }
+        for (String variable : variables) {
+            if (evidence.containsKey(variable)) {
+                throw new IllegalArgumentException("Query variable " + variable + " is also observed.");
+            }
+        }
+    }
+
+    public List<String> getVariables() {
+        return distribution.getVariables();
+    }
+
+    // One entry per combination of outcomes of the query variables, last variable fastest
+    public double[] getProbabilities() {
+        return distribution.getValues().clone();
+    }
+
+    public double getProbability(List<String> outcomes) {
+        return distribution.getProbability(outcomes);
+    }
+
+    // P(evidence); 1 when there is no evidence
+    public double getEvidenceProbability() {
+        return evidenceProbability;
+    }
+
+    // ln P(evidence); still finite in the scaled arithmetic when P(evidence) is below the smallest double
+    public double getLogEvidenceProbability() {
+        return logEvidenceProbability;
+    }
+
+    public int getAdditionCount() {
+        return additionCount;
+    }
+
+    public int getMultiplicationCount() {
+        return multiplicationCount;
+    }
+
+    @Override
+    public String toString() {
+        return "Posterior{" +
+                "variables=" + getVariables() +
+                ", probabilities=" + Arrays.toString(distribution.getValues()) +
+                ", evidenceProbability=" + evidenceProbability +
+                '}';
+    }
+}
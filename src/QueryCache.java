@@ -0,0 +1,135 @@
+import java.io.PrintStream;
+import java.util.*;
+
+// Remembers the answers of an engine by a canonical form of the query, so repeated lines skip inference.
+// The key holds the query assignment, the evidence sorted by variable and, for engines that follow it, the
+// elimination order restricted to variables that are ancestors of the query or evidence (the others are
+// always pruned, so where they appear in the line cannot change the answer). Answers come back with the
+// counts of the run that computed them. Everything is dropped when the network's version changes.
+public class QueryCache implements InferenceEngine {
+
+    public enum EvictionPolicy {
+        LRU, FIFO;
+
+        public static EvictionPolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private final InferenceEngine engine;
+    private final BayesianNetwork network;
+    private final boolean orderMatters;
+    private final int capacity;
+    private final EvictionPolicy policy;
+    private final LinkedHashMap<List<List<String>>, QueryResult> results;
+    private long version;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public QueryCache(InferenceEngine engine, BayesianNetwork network, boolean orderMatters, int capacity, EvictionPolicy policy) {
+        this.engine = engine;
+        this.network = network;
+        this.orderMatters = orderMatters;
+        this.capacity = capacity;
+        this.policy = policy;
+        this.version = network.getVersion();
+        this.results = new LinkedHashMap<>(16, 0.75f, policy == EvictionPolicy.LRU) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<List<List<String>>, QueryResult> eldest) {
+                if (size() > QueryCache.this.capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+        // The engine may prune the maps and the order it is given, so the key is taken first
+        List<List<String>> key = key(queryVariables, evidence, hiddenVariables);
+        long queryVersion = network.getVersion();
+        synchronized (this) {
+            if (queryVersion != version) {
+                results.clear();
+                version = queryVersion;
+                invalidations++;
+            }
+            QueryResult result = results.get(key);
+            if (result != null) {
+                hits++;
+                return result;
+            }
+            misses++;
+        }
+
+        QueryResult result = engine.query(queryVariables, evidence, hiddenVariables);
+        synchronized (this) {
+            if (queryVersion == version) {
+                results.put(key, result);
+            }
+        }
+        return result;
+    }
+
+    // Distributions are not cached; they are requested far less often than single answers
+    @Override
+    public Posterior posterior(List<String> queryVariables, Map<String, String> evidence) {
+        return engine.posterior(queryVariables, evidence);
+    }
+
+    private List<List<String>> key(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+        List<String> query = assignments(queryVariables);
+        List<String> observed = assignments(evidence);
+        List<String> order = new ArrayList<>();
+        if (orderMatters) {
+            Set<String> relevant = new HashSet<>(queryVariables.keySet());
+            relevant.addAll(evidence.keySet());
+            for (String hidden : hiddenVariables) {
+                if (network.getId(hidden) < 0 || relevant.stream().anyMatch(var -> network.isAncestor(hidden, var))) {
+                    order.add(hidden);
+                }
+            }
+        }
+        return List.of(query, observed, order);
+    }
+
+    // "name=value" pairs sorted by name
+    private static List<String> assignments(Map<String, String> values) {
+        List<String> names = new ArrayList<>(values.keySet());
+        Collections.sort(names);
+        List<String> pairs = new ArrayList<>(names.size());
+        for (String name : names) {
+            pairs.add(name + "=" + values.get(name));
+        }
+        return pairs;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    @Override
+    public void reportStatistics(PrintStream out) {
+        synchronized (this) {
+            out.println("query cache (" + policy + "): " + results.size() + "/" + capacity + " entries, " + hits + " hits, "
+                    + misses + " misses, " + evictions + " evictions, " + invalidations + " invalidations");
+        }
+        engine.reportStatistics(out);
+    }
+}
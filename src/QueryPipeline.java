@@ -0,0 +1,196 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+// Streams an input file through three stages that run at the same time: the caller reads and tokenizes lines,
+// a pool answers them, and a writer thread writes the answers in input order.
+// Lines move between the stages in chunks, so the hand-offs cost one task and one queue operation per chunk
+// rather than per query. The stages are joined by a queue of at most 'depth' pending chunks, so a slow writer or
+// a slow engine stops the reader instead of letting answers pile up, and the heap stays constant however large
+// the input is.
+public class QueryPipeline {
+    // Lines per chunk
+    private static final int CHUNK = 256;
+
+    // Marks the end of the input for the writer
+    private static final Future<Answers> END = CompletableFuture.completedFuture(null);
+
+    private final QueryTokenizer tokenizer;
+    private final InferenceEngine engine;
+    private final BayesBall bayesBall;
+    private final InferenceOptions options;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder chunks = new LongAdder();
+    private final LongAdder readerStalledNanos = new LongAdder();
+    private final LongAdder writerWaitingNanos = new LongAdder();
+
+    public QueryPipeline(QueryTokenizer tokenizer, InferenceEngine engine, BayesBall bayesBall, InferenceOptions options) {
+        this.tokenizer = tokenizer;
+        this.engine = engine;
+        this.bayesBall = bayesBall;
+        this.options = options;
+    }
+
+    // Answer every query line left in the reader; the answers are written but the writer is not closed.
+    // A line that fails stops the run after the answers before it are written, as in the sequential loop.
+    public void run(BufferedReader in, Writer out) throws IOException, InterruptedException, ExecutionException {
+        ExecutorService executor = options.getThreads() <= 1 ? Executors.newSingleThreadExecutor()
+                : options.isVirtualThreads() ? Executors.newVirtualThreadPerTaskExecutor() : new ForkJoinPool(options.getThreads());
+        BlockingQueue<Future<Answers>> pending = new ArrayBlockingQueue<>(options.getPipelineDepth());
+        AnswerWriter writer = new AnswerWriter(pending, out);
+        Thread writerThread = Thread.ofPlatform().name("query-pipeline-writer").start(writer);
+        try {
+            Object[] chunk = new Object[CHUNK];
+            int size = 0;
+            String line;
+            boolean isBBQuery = true;
+            while (writer.failure == null && (line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue; // Skip empty lines
+                }
+                if (line.startsWith("P(")) {
+                    isBBQuery = false; // Switch to VE queries
+                }
+
+                try {
+                    chunk[size] = isBBQuery ? tokenizer.parseIndependence(line) : tokenizer.parseProbability(line);
+                } catch (RuntimeException e) {
+                    chunk[size] = e; // Fails the chunk at this line
+                }
+                if (++size == CHUNK) {
+                    submit(executor, pending, chunk, size);
+                    chunk = new Object[CHUNK];
+                    size = 0;
+                }
+            }
+            if (size > 0) {
+                submit(executor, pending, chunk, size);
+            }
+        } finally {
+            pending.put(END);
+            writerThread.join();
+            executor.shutdownNow();
+        }
+        if (writer.failure instanceof IOException) {
+            throw (IOException) writer.failure;
+        }
+        if (writer.failure != null) {
+            throw new ExecutionException(writer.failure);
+        }
+    }
+
+    private void submit(ExecutorService executor, BlockingQueue<Future<Answers>> pending, Object[] chunk, int size)
+            throws InterruptedException {
+        Future<Answers> answers = executor.submit(() -> answer(chunk, size));
+        queries.add(size);
+        chunks.increment();
+        if (!pending.offer(answers)) {
+            long start = System.nanoTime();
+            pending.put(answers);
+            readerStalledNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    // The answer lines of a chunk, up to the first line that failed
+    private Answers answer(Object[] chunk, int size) {
+        StringBuilder text = new StringBuilder(size * 16);
+        String separator = System.lineSeparator();
+        for (int i = 0; i < size; i++) {
+            try {
+                if (chunk[i] instanceof RuntimeException) {
+                    throw (RuntimeException) chunk[i];
+                }
+                text.append(chunk[i] instanceof BatchPlanner.Query
+                        ? Ex1.answerProbability((BatchPlanner.Query) chunk[i], engine)
+                        : Ex1.answerIndependence((QueryTokenizer.IndependenceQuery) chunk[i], bayesBall));
+                text.append(separator);
+            } catch (RuntimeException e) {
+                return new Answers(text, e);
+            }
+        }
+        return new Answers(text, null);
+    }
+
+    // Time the reader spent blocked on a full queue is time the engine or the writer was the bottleneck
+    public void reportStatistics(PrintStream out) {
+        out.println(String.format("pipeline: %d queries in %d chunks, depth %d, reader stalled %.1f ms, writer waited %.1f ms",
+                queries.sum(), chunks.sum(), options.getPipelineDepth(), readerStalledNanos.sum() / 1e6,
+                writerWaitingNanos.sum() / 1e6));
+    }
+
+    // Answer lines of one chunk and the failure that cut it short, if any
+    private static final class Answers {
+        final CharSequence text;
+        final RuntimeException failure;
+
+        Answers(CharSequence text, RuntimeException failure) {
+            this.text = text;
+            this.failure = failure;
+        }
+    }
+
+    // Writes the chunks in input order and flushes whenever it has caught up with the engine.
+    // After a failure it keeps taking chunks without writing them, so the reader is never left blocked.
+    private final class AnswerWriter implements Runnable {
+        private final BlockingQueue<Future<Answers>> pending;
+        private final Writer out;
+        private volatile Throwable failure;
+
+        AnswerWriter(BlockingQueue<Future<Answers>> pending, Writer out) {
+            this.pending = pending;
+            this.out = out;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Future<Answers> next = pending.poll();
+                    if (next == null) {
+                        if (failure == null) {
+                            flush();
+                        }
+                        long start = System.nanoTime();
+                        next = pending.take();
+                        writerWaitingNanos.add(System.nanoTime() - start);
+                    }
+                    if (next == END) {
+                        break;
+                    }
+                    if (failure != null) {
+                        next.cancel(true);
+                        continue;
+                    }
+                    try {
+                        Answers answers = next.get();
+                        out.append(answers.text);
+                        if (answers.failure != null) {
+                            failure = answers.failure;
+                        }
+                    } catch (ExecutionException e) {
+                        failure = e.getCause();
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                flush();
+            } catch (InterruptedException e) {
+                failure = e;
+            }
+        }
+
+        private void flush() {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+    }
+}
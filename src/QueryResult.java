@@ -0,0 +1,30 @@
+// A query answer together with the work spent on it
+public class QueryResult {
+    private final double probability;
+    private final int additionCount;
+    private final int multiplicationCount;
+
+    public QueryResult(double probability, int additionCount, int multiplicationCount) {
+        this.probability = probability;
+        this.additionCount = additionCount;
+        this.multiplicationCount = multiplicationCount;
+    }
+
+    public double getProbability() {
+        return probability;
+    }
+
+    public int getAdditionCount() {
+        return additionCount;
+    }
+
+    public int getMultiplicationCount() {
+        return multiplicationCount;
+    }
+
+    // The output line format: probability, additions, multiplications
+    @Override
+    public String toString() {
+        return String.format("%.5f,%d,%d", probability, additionCount, multiplicationCount);
+    }
+}
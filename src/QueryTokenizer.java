@@ -0,0 +1,254 @@
+import java.util.*;
+
+// Hand-written parser for query lines, used instead of chains of String.split and their regex and array allocations.
+// Names are resolved through open-addressing tables built once per network, straight from the line's characters,
+// so the parsed maps hold the network's own String instances and no substring is made for a known node or outcome.
+// Lines are read field by field exactly as the split-based parsing did, including how malformed pairs are skipped.
+// The tables are never modified after construction, so one tokenizer can be shared by any number of threads.
+public class QueryTokenizer {
+    private final BayesianNetwork network;
+    private final NameTable nodes;
+    private final NameTable[] outcomes;
+
+    public QueryTokenizer(BayesianNetwork network) {
+        this.network = network;
+        List<BayesianNode> networkNodes = network.getNodes();
+        this.nodes = new NameTable(networkNodes.size());
+        this.outcomes = new NameTable[networkNodes.size()];
+        for (int id = 0; id < networkNodes.size(); id++) {
+            BayesianNode node = networkNodes.get(id);
+            nodes.add(node.getName(), id);
+            outcomes[id] = new NameTable(node.getOutcomes().size());
+            for (int k = 0; k < node.getOutcomes().size(); k++) {
+                outcomes[id].add(node.getOutcomes().get(k), k);
+            }
+        }
+    }
+
+    // P(Q=q,...|E=e,...) H1-H2-...: the hidden variables listed on the line come first, in their order,
+    // followed by every other node of the network that is neither queried nor observed
+    public BatchPlanner.Query parseProbability(String line) {
+        int length = line.length();
+        int close = line.indexOf(')');
+        int wholeEnd = close < 0 ? length : close;
+
+        // Query and evidence are the first two '|' fields inside the parentheses
+        int pipe = indexOf(line, '|', 2, wholeEnd);
+        Map<String, String> queryVariables = new HashMap<>();
+        parsePairs(line, 2, pipe < 0 ? wholeEnd : pipe, queryVariables);
+        Map<String, String> evidence = new HashMap<>();
+        if (pipe >= 0) {
+            int next = indexOf(line, '|', pipe + 1, wholeEnd);
+            parsePairs(line, pipe + 1, next < 0 ? wholeEnd : next, evidence);
+        }
+
+        // The hidden path follows the first ')', unless another ')' comes before the trailing ones
+        List<String> hiddenVariables = new ArrayList<>();
+        BitSet listed = new BitSet(network.size());
+        if (close >= 0) {
+            int restEnd = length;
+            while (restEnd > close + 1 && line.charAt(restEnd - 1) == ')') {
+                restEnd--;
+            }
+            if (indexOf(line, ')', close + 1, restEnd) < 0) {
+                int from = skipBlanks(line, close + 1, restEnd);
+                int to = trimEnd(line, from, restEnd);
+                while (to > from && line.charAt(to - 1) == '-') {
+                    to--;
+                }
+                while (from < to) {
+                    int dash = indexOf(line, '-', from, to);
+                    int fieldEnd = dash < 0 ? to : dash;
+                    String name = nodeName(line, from, fieldEnd);
+                    hiddenVariables.add(name);
+                    int id = network.getId(name);
+                    if (id >= 0) {
+                        listed.set(id);
+                    }
+                    from = dash < 0 ? to : dash + 1;
+                }
+            }
+        }
+        for (BayesianNode node : network.getNodes()) {
+            String name = node.getName();
+            int id = network.getId(name);
+            if (!listed.get(id) && !evidence.containsKey(name) && !queryVariables.containsKey(name)) {
+                listed.set(id);
+                hiddenVariables.add(name);
+            }
+        }
+        return new BatchPlanner.Query(line, queryVariables, evidence, hiddenVariables);
+    }
+
+    // S-E|E1=e1,E2=e2: the two nodes and the names of the observed nodes
+    public IndependenceQuery parseIndependence(String line) {
+        int length = line.length();
+        int pipe = line.indexOf('|');
+        int pathEnd = pipe < 0 ? length : pipe;
+        int from = skipBlanks(line, 0, pathEnd);
+        int to = trimEnd(line, from, pathEnd);
+        while (to > from && line.charAt(to - 1) == '-') {
+            to--;
+        }
+        int dash = indexOf(line, '-', from, to);
+        if (dash < 0) {
+            throw new IllegalArgumentException("Expected two nodes separated by '-' in " + line);
+        }
+        int second = indexOf(line, '-', dash + 1, to);
+        String start = nodeName(line, from, dash);
+        String end = nodeName(line, dash + 1, second < 0 ? to : second);
+
+        Set<String> evidence = new HashSet<>();
+        if (pipe >= 0) {
+            int next = line.indexOf('|', pipe + 1);
+            int evidenceEnd = next < 0 ? length : next;
+            for (int field = pipe + 1; field < evidenceEnd; ) {
+                int comma = indexOf(line, ',', field, evidenceEnd);
+                int fieldEnd = comma < 0 ? evidenceEnd : comma;
+                int fieldFrom = skipBlanks(line, field, fieldEnd);
+                int equals = pairSeparator(line, fieldFrom, trimEnd(line, fieldFrom, fieldEnd));
+                if (equals >= 0) {
+                    evidence.add(nodeName(line, fieldFrom, equals));
+                }
+                field = comma < 0 ? evidenceEnd : comma + 1;
+            }
+        }
+        return new IndependenceQuery(start, end, evidence);
+    }
+
+    // N=v pairs separated by ',' in [from, to), which is trimmed first; a pair needs exactly one '=' before any
+    // trailing ones, and its name and value are trimmed
+    private void parsePairs(String line, int from, int to, Map<String, String> pairs) {
+        from = skipBlanks(line, from, to);
+        to = trimEnd(line, from, to);
+        for (int field = from; field < to; ) {
+            int comma = indexOf(line, ',', field, to);
+            int fieldEnd = comma < 0 ? to : comma;
+            while (fieldEnd > field && line.charAt(fieldEnd - 1) == '=') {
+                fieldEnd--;
+            }
+            int equals = pairSeparator(line, field, fieldEnd);
+            if (equals >= 0) {
+                String name = nodeName(line, field, equals);
+                pairs.put(name, outcomeName(name, line, equals + 1, fieldEnd));
+            }
+            field = comma < 0 ? to : comma + 1;
+        }
+    }
+
+    // Position of the only '=' of a pair once its trailing '=' are ignored, or -1
+    private static int pairSeparator(String line, int from, int to) {
+        while (to > from && line.charAt(to - 1) == '=') {
+            to--;
+        }
+        int equals = indexOf(line, '=', from, to);
+        return equals >= 0 && indexOf(line, '=', equals + 1, to) < 0 ? equals : -1;
+    }
+
+    // Trimmed [from, to) as the network's name of that node, or as a new string if there is no such node
+    private String nodeName(String line, int from, int to) {
+        from = skipBlanks(line, from, to);
+        to = trimEnd(line, from, to);
+        int id = nodes.find(line, from, to);
+        return id >= 0 ? network.getNode(id).getName() : line.substring(from, to);
+    }
+
+    private String outcomeName(String nodeName, String line, int from, int to) {
+        from = skipBlanks(line, from, to);
+        to = trimEnd(line, from, to);
+        int id = network.getId(nodeName);
+        int outcome = id >= 0 ? outcomes[id].find(line, from, to) : -1;
+        return outcome >= 0 ? network.getNode(id).getOutcomes().get(outcome) : line.substring(from, to);
+    }
+
+    private static int indexOf(String line, char c, int from, int to) {
+        int index = line.indexOf(c, from);
+        return index < to ? index : -1;
+    }
+
+    // String.trim's notion of blank: every char up to ' '
+    private static int skipBlanks(String line, int from, int to) {
+        while (from < to && line.charAt(from) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimEnd(String line, int from, int to) {
+        while (to > from && line.charAt(to - 1) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    // A parsed Bayes-Ball line
+    public static final class IndependenceQuery {
+        private final String start;
+        private final String end;
+        private final Set<String> evidence;
+
+        public IndependenceQuery(String start, String end, Set<String> evidence) {
+            this.start = start;
+            this.end = end;
+            this.evidence = Collections.unmodifiableSet(evidence);
+        }
+
+        public String getStart() {
+            return start;
+        }
+
+        public String getEnd() {
+            return end;
+        }
+
+        public Set<String> getEvidence() {
+            return evidence;
+        }
+    }
+
+    // Open-addressing map from names to ids that looks names up by a range of characters, with String's hash
+    private static final class NameTable {
+        private final String[] names;
+        private final int[] ids;
+        private final int mask;
+
+        NameTable(int expected) {
+            int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+            names = new String[capacity];
+            ids = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        // The first of several equal names keeps its id, like BayesianNetwork's index
+        void add(String name, int id) {
+            int slot = mix(name.hashCode()) & mask;
+            while (names[slot] != null) {
+                if (names[slot].equals(name)) {
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = name;
+            ids[slot] = id;
+        }
+
+        int find(String line, int from, int to) {
+            int hash = 0;
+            for (int i = from; i < to; i++) {
+                hash = 31 * hash + line.charAt(i);
+            }
+            int length = to - from;
+            for (int slot = mix(hash) & mask; names[slot] != null; slot = (slot + 1) & mask) {
+                String name = names[slot];
+                if (name.length() == length && line.regionMatches(from, name, 0, length)) {
+                    return ids[slot];
+                }
+            }
+            return -1;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+// A sampled answer with its standard error; the output line keeps the exact engines' format, with no counted work
+public class SampledResult extends QueryResult {
+    private final double standardError;
+    private final long sampleCount;
+
+    public SampledResult(double probability, double standardError, long sampleCount) {
+        super(probability, 0, 0);
+        this.standardError = standardError;
+        this.sampleCount = sampleCount;
+    }
+
+    public double getStandardError() {
+        return standardError;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+}
@@ -0,0 +1,421 @@
+import java.io.PrintStream;
+import java.nio.DoubleBuffer;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.LongAdder;
+
+// Approximate inference by sampling the CPTs, for queries whose exact factors do not fit in memory.
+// Each chain owns a SplittableRandom split from one seeded root and its own tallies, so chains run on separate cores
+// without sharing anything but the read-only tables, and an answer only depends on the seed and the chain count.
+// Sampling stops after the sample budget, or earlier once the standard error falls below the target.
+public abstract class Sampler implements InferenceEngine {
+
+    // Samples a chain draws per tally; the standard error is checked after every round of one batch per chain
+    static final int BATCH = 1024;
+
+    protected final BayesianNetwork network;
+    private final long samples;
+    private final double targetError;
+    private final int chains;
+    private final long seed;
+    private volatile Tables tables;
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder drawn = new LongAdder();
+    private final LongAdder stoppedEarly = new LongAdder();
+
+    protected Sampler(BayesianNetwork network, InferenceOptions options) {
+        this.network = network;
+        this.samples = options.getSamples();
+        this.targetError = options.getTargetError();
+        this.chains = options.getChains();
+        this.seed = options.getSeed();
+    }
+
+    // Short engine name for events and statistics
+    protected abstract String name();
+
+    protected abstract Chain newChain(Tables tables, Plan plan, SplittableRandom random);
+
+    // Standard error of the estimate of one configuration of the query variables
+    protected abstract double standardError(List<Tally> batches, Tally total, int config);
+
+    // Estimate of P(evidence), or NaN when the sampler cannot give one
+    protected abstract double evidenceProbability(Tally total);
+
+    @Override
+    public QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+        InferenceEvents.Query event = new InferenceEvents.Query();
+        event.begin();
+        long start = System.nanoTime();
+        List<String> variables = new ArrayList<>(queryVariables.keySet());
+        List<String> outcomes = new ArrayList<>();
+        for (String variable : variables) {
+            outcomes.add(queryVariables.get(variable));
+        }
+        Plan plan = new Plan(tables(), variables, evidence);
+        int config = plan.config(outcomes);
+        Estimate estimate = estimate(plan, config);
+        SampledResult result = new SampledResult(estimate.distribution.getProbability(outcomes),
+                config < 0 ? 0 : standardError(estimate.batches, estimate.total, config), estimate.total.samples);
+
+        InferenceMetrics.query(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.engine = name();
+            event.query = queryVariables + " | " + evidence;
+            event.evidence = evidence.size();
+            event.commit();
+        }
+        return result;
+    }
+
+    @Override
+    public Posterior posterior(List<String> queryVariables, Map<String, String> evidence) {
+        Posterior.checkQuery(queryVariables, evidence);
+        Estimate estimate = estimate(new Plan(tables(), queryVariables, evidence), -1);
+        return new Posterior(estimate.distribution, evidenceProbability(estimate.total), 0, 0);
+    }
+
+    @Override
+    public void reportStatistics(PrintStream out) {
+        out.println(name() + " sampler: " + queries.sum() + " queries, " + drawn.sum() + " samples, "
+                + stoppedEarly.sum() + " stopped at the target error");
+    }
+
+    // Draw rounds of samples on every chain until the budget is spent or the error of 'config' (of every
+    // configuration when it is -1) is below the target
+    private Estimate estimate(Plan plan, int config) {
+        SplittableRandom root = new SplittableRandom(seed);
+        Chain[] running = new Chain[chains];
+        for (int i = 0; i < chains; i++) {
+            running[i] = newChain(plan.tables, plan, root.split());
+        }
+        List<Tally> batches = new ArrayList<>();
+        Tally total = new Tally(plan.configs);
+        long remaining = samples;
+        while (remaining > 0) {
+            long round = targetError > 0 ? Math.min(remaining, (long) BATCH * chains) : remaining;
+            for (Tally batch : run(running, plan.configs, round)) {
+                batches.add(batch);
+                total.merge(batch);
+            }
+            remaining -= round;
+            if (targetError > 0 && remaining > 0 && total.total > 0 && error(batches, total, config) <= targetError) {
+                stoppedEarly.increment();
+                break;
+            }
+        }
+        queries.increment();
+        drawn.add(total.samples);
+        if (total.total == 0) {
+            throw new IllegalStateException("No sample agreed with the evidence; it may have probability zero.");
+        }
+
+        Factor distribution = plan.newFactor();
+        double[] values = distribution.getValues();
+        for (int c = 0; c < values.length; c++) {
+            values[c] = total.weights[c] / total.total;
+        }
+        return new Estimate(distribution, total, batches);
+    }
+
+    private double error(List<Tally> batches, Tally total, int config) {
+        if (config >= 0) {
+            return standardError(batches, total, config);
+        }
+        double max = 0;
+        for (int c = 0; c < total.weights.length; c++) {
+            max = Math.max(max, standardError(batches, total, c));
+        }
+        return max;
+    }
+
+    // Split 'count' samples over the chains; the caller runs the first chain while the common pool runs the rest
+    private static List<Tally> run(Chain[] chains, int configs, long count) {
+        List<ForkJoinTask<List<Tally>>> tasks = new ArrayList<>();
+        for (int i = 0; i < chains.length; i++) {
+            Chain chain = chains[i];
+            long share = count / chains.length + (i < count % chains.length ? 1 : 0);
+            tasks.add(ForkJoinTask.adapt(() -> chain.run(share, configs)));
+        }
+        for (int i = 1; i < tasks.size(); i++) {
+            ForkJoinPool.commonPool().execute(tasks.get(i));
+        }
+        List<Tally> batches = new ArrayList<>(tasks.getFirst().invoke());
+        for (int i = 1; i < tasks.size(); i++) {
+            batches.addAll(tasks.get(i).join());
+        }
+        return batches;
+    }
+
+    // Tables of the current network version, rebuilt after the CPTs change
+    private Tables tables() {
+        Tables current = tables;
+        if (current == null || current.version != network.getVersion()) {
+            current = new Tables(network);
+            tables = current;
+        }
+        return current;
+    }
+
+    // The CPTs in flat arrays, with the cumulative distribution of every row for drawing an outcome with one scan
+    protected static final class Tables {
+        final long version;
+        final int[] cardinalities;
+        final int[][] parents;
+        final int[][] strides;
+        final double[][] probabilities;
+        final double[][] cumulative;
+        final int[] order;
+
+        Tables(BayesianNetwork network) {
+            this.version = network.getVersion();
+            int n = network.size();
+            this.cardinalities = new int[n];
+            this.parents = new int[n][];
+            this.strides = new int[n][];
+            this.probabilities = new double[n][];
+            this.cumulative = new double[n][];
+            this.order = network.getTopologicalOrder();
+            for (int id = 0; id < n; id++) {
+                cardinalities[id] = network.getNode(id).getOutcomes().size();
+            }
+            for (int id = 0; id < n; id++) {
+                parents[id] = network.getParents(id);
+                strides[id] = new int[parents[id].length];
+                int stride = 1;
+                for (int p = parents[id].length - 1; p >= 0; p--) {
+                    strides[id][p] = stride;
+                    stride *= cardinalities[parents[id][p]];
+                }
+                int k = cardinalities[id];
+                DoubleBuffer table = network.getNode(id).getProbabilities();
+                probabilities[id] = new double[stride * k];
+                cumulative[id] = new double[stride * k];
+                for (int row = 0; row < stride; row++) {
+                    double sum = 0;
+                    for (int j = 0; j < k; j++) {
+                        probabilities[id][row * k + j] = table.get(row * k + j);
+                        sum += probabilities[id][row * k + j];
+                    }
+                    // Rows are normalized so rounding in the file cannot push a draw past the last outcome
+                    double running = 0;
+                    for (int j = 0; j < k; j++) {
+                        running += probabilities[id][row * k + j];
+                        cumulative[id][row * k + j] = sum > 0 ? running / sum : 1.0;
+                    }
+                    cumulative[id][row * k + k - 1] = 1.0;
+                }
+            }
+        }
+
+        // Row of a node's CPT selected by the outcomes of its parents in a sample
+        int row(int id, int[] state) {
+            int[] ps = parents[id];
+            int[] st = strides[id];
+            int row = 0;
+            for (int p = 0; p < ps.length; p++) {
+                row += state[ps[p]] * st[p];
+            }
+            return row;
+        }
+
+        // Outcome whose cumulative interval holds u, for u uniform in [0, 1): a scan for the usual handful of
+        // outcomes, a binary search for wide variables
+        int draw(int id, int row, double u) {
+            double[] cdf = cumulative[id];
+            int k = cardinalities[id];
+            int base = row * k;
+            if (k <= 16) {
+                for (int j = 0; j < k - 1; j++) {
+                    if (u < cdf[base + j]) {
+                        return j;
+                    }
+                }
+                return k - 1;
+            }
+            int low = 0;
+            int high = k - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (u < cdf[base + middle]) {
+                    high = middle;
+                } else {
+                    low = middle + 1;
+                }
+            }
+            return low;
+        }
+    }
+
+    // One query: the evidence as outcome indices, the nodes worth sampling and how a sample maps to a configuration
+    // of the query variables. Only ancestors of the query and the evidence affect the answer, so the rest is skipped.
+    protected final class Plan {
+        final Tables tables;
+        final List<String> variables;
+        final int[] queryIds;
+        final int[] queryStrides;
+        final int configs;
+        final int[] evidence;
+        final boolean[] relevant;
+        final int[] order;
+
+        Plan(Tables tables, List<String> variables, Map<String, String> evidenceOutcomes) {
+            this.tables = tables;
+            this.variables = List.copyOf(variables);
+            int n = network.size();
+            this.evidence = new int[n];
+            Arrays.fill(evidence, -1);
+            this.relevant = new boolean[n];
+            // Evidence on a variable the network does not have is ignored, as in the exact engines; an outcome it does
+            // not have can never be observed, so it rejects the query like evidence of probability zero
+            for (Map.Entry<String, String> entry : evidenceOutcomes.entrySet()) {
+                int id = network.getId(entry.getKey());
+                if (id < 0) {
+                    continue;
+                }
+                evidence[id] = network.getNode(id).getOutcomes().indexOf(entry.getValue());
+                if (evidence[id] < 0) {
+                    throw new IllegalStateException("Unknown outcome " + entry.getValue() + " of " + entry.getKey());
+                }
+                markAncestors(id);
+            }
+            this.queryIds = new int[variables.size()];
+            this.queryStrides = new int[variables.size()];
+            int configs = 1;
+            for (int i = variables.size() - 1; i >= 0; i--) {
+                queryIds[i] = idOf(variables.get(i));
+                queryStrides[i] = configs;
+                configs = Math.multiplyExact(configs, tables.cardinalities[queryIds[i]]);
+                markAncestors(queryIds[i]);
+            }
+            this.configs = configs;
+            int count = 0;
+            int[] order = new int[n];
+            for (int id : tables.order) {
+                if (relevant[id]) {
+                    order[count++] = id;
+                }
+            }
+            this.order = Arrays.copyOf(order, count);
+        }
+
+        // A query variable the network does not have rejects the query
+        private int idOf(String name) {
+            int id = network.getId(name);
+            if (id < 0) {
+                throw new IllegalStateException("Unknown variable " + name);
+            }
+            return id;
+        }
+
+        private void markAncestors(int id) {
+            relevant[id] = true;
+            BitSet ancestors = network.getAncestors(id);
+            for (int a = ancestors.nextSetBit(0); a >= 0; a = ancestors.nextSetBit(a + 1)) {
+                relevant[a] = true;
+            }
+        }
+
+        // Configuration index of the query variables in a sample, last variable fastest
+        int config(int[] state) {
+            int config = 0;
+            for (int i = 0; i < queryIds.length; i++) {
+                config += state[queryIds[i]] * queryStrides[i];
+            }
+            return config;
+        }
+
+        // Configuration index of named outcomes, or -1 if one is not an outcome of its variable
+        int config(List<String> outcomes) {
+            int config = 0;
+            for (int i = 0; i < queryIds.length; i++) {
+                int outcome = network.getNode(queryIds[i]).getOutcomes().indexOf(outcomes.get(i));
+                if (outcome < 0) {
+                    return -1;
+                }
+                config += outcome * queryStrides[i];
+            }
+            return config;
+        }
+
+        Factor newFactor() {
+            List<List<String>> domains = new ArrayList<>();
+            for (int id : queryIds) {
+                domains.add(network.getNode(id).getOutcomes());
+            }
+            return new Factor(variables, queryIds, domains);
+        }
+    }
+
+    // State of one sampler, used by one thread at a time
+    protected abstract static class Chain {
+        protected final SplittableRandom random;
+
+        protected Chain(SplittableRandom random) {
+            this.random = random;
+        }
+
+        // Draw 'count' samples into the tally
+        protected abstract void sample(int count, Tally tally);
+
+        // One tally per batch of samples, so the samplers can estimate their error from batch to batch
+        List<Tally> run(long count, int configs) {
+            List<Tally> batches = new ArrayList<>();
+            for (long done = 0; done < count; done += BATCH) {
+                Tally tally = new Tally(configs);
+                sample((int) Math.min(BATCH, count - done), tally);
+                batches.add(tally);
+            }
+            return batches;
+        }
+    }
+
+    // Weights, and squared weights, of the samples per configuration of the query variables
+    protected static final class Tally {
+        final double[] weights;
+        final double[] squares;
+        double total;
+        double totalSquares;
+        long samples;
+
+        Tally(int configs) {
+            this.weights = new double[configs];
+            this.squares = new double[configs];
+        }
+
+        void add(int config, double weight) {
+            samples++;
+            if (weight > 0) {
+                weights[config] += weight;
+                squares[config] += weight * weight;
+                total += weight;
+                totalSquares += weight * weight;
+            }
+        }
+
+        void merge(Tally other) {
+            for (int c = 0; c < weights.length; c++) {
+                weights[c] += other.weights[c];
+                squares[c] += other.squares[c];
+            }
+            total += other.total;
+            totalSquares += other.totalSquares;
+            samples += other.samples;
+        }
+    }
+
+    private static final class Estimate {
+        final Factor distribution;
+        final Tally total;
+        final List<Tally> batches;
+
+        Estimate(Factor distribution, Tally total, List<Tally> batches) {
+            this.distribution = distribution;
+            this.total = total;
+            this.batches = batches;
+        }
+    }
+}
@@ -1,75 +1,334 @@
+import java.io.PrintStream;
+import java.nio.DoubleBuffer;
 import java.util.*;
 
 public class VariableElimination {
+    // In the scaled arithmetic a factor is rescaled once its largest entry leaves [2^-RESCALE_LIMIT, 2^RESCALE_LIMIT]
+    private static final int RESCALE_LIMIT = 256;
+
     private final BayesianNetwork network;
     private final Map<String, String> evidence;
     private final Map<String, String> queryVariables;
     private final List<String> hiddenVariables;
+    private final InferenceOptions options;
+    private final FactorCache cache;
+    private final boolean scaled;
     private final List<Factor> factors;
+    private final Map<Factor, FactorCache.Key> keys;
+    private List<String> givenOrder;
+    private long predictedMaxFactorSize;
     private int multiplicationCount;
     private int additionCount;
+    private final long[] phaseNanos = new long[InferenceMetrics.Phase.values().length];
+    private long maxFactorSize;
+    private int maxFactorWidth;
+    private boolean lastBucketCached;
 
     public VariableElimination(BayesianNetwork network, Map<String, String> evidence, Map<String, String> queryVariables, List<String> hiddenVariables) {
+        this(network, evidence, queryVariables, hiddenVariables, new InferenceOptions());
+    }
+
+    public VariableElimination(BayesianNetwork network, Map<String, String> evidence, Map<String, String> queryVariables, List<String> hiddenVariables,
+                               InferenceOptions options) {
+        this(network, evidence, queryVariables, hiddenVariables, options, null);
+    }
+
+    // Queries built with the same cache reuse each other's restricted CPTs and eliminated factors
+    public VariableElimination(BayesianNetwork network, Map<String, String> evidence, Map<String, String> queryVariables, List<String> hiddenVariables,
+                               InferenceOptions options, FactorCache cache) {
+        this(network, evidence, queryVariables, hiddenVariables, options, cache, false);
+    }
+
+    private VariableElimination(BayesianNetwork network, Map<String, String> evidence, Map<String, String> queryVariables, List<String> hiddenVariables,
+                                InferenceOptions options, FactorCache cache, boolean ancestralOnly) {
         this.network = network;
         this.evidence = evidence;
         this.queryVariables = queryVariables;
         this.hiddenVariables = hiddenVariables;
+        this.options = options;
+        this.cache = cache;
+        this.scaled = options.getArithmetic() == InferenceOptions.Arithmetic.SCALED;
         this.factors = new ArrayList<>();
+        this.keys = new IdentityHashMap<>();
         this.multiplicationCount = 0;
         this.additionCount = 0;
+        long start = System.nanoTime();
         initializeFactors();
-        applyEvidence();
-        filterIrrelevantVariables();
+        start = lap(InferenceMetrics.Phase.INITIALIZE, start);
+        phaseNanos[InferenceMetrics.Phase.INITIALIZE.ordinal()] -= phaseNanos[InferenceMetrics.Phase.EVIDENCE.ordinal()];
+        if (ancestralOnly) {
+            removeBarrenVariables();
+        } else {
+            filterIrrelevantVariables();
+        }
+        start = lap(InferenceMetrics.Phase.FILTER, start);
+        orderHiddenVariables();
+        lap(InferenceMetrics.Phase.ORDER, start);
+    }
+
+    // Charge the time since start to a phase and return the current time
+    private long lap(InferenceMetrics.Phase phase, long start) {
+        long now = System.nanoTime();
+        phaseNanos[phase.ordinal()] += now - start;
+        return now;
+    }
+
+    // Full distribution of the query variables and P(evidence) from one elimination.
+    // Only barren variables are pruned: the independence pruning of run() drops evidence and factors that P(evidence) depends on.
+    public static Posterior posterior(BayesianNetwork network, List<String> queryVariables, Map<String, String> evidence,
+                                      InferenceOptions options, FactorCache cache) {
+        Posterior.checkQuery(queryVariables, evidence);
+        Map<String, String> query = new LinkedHashMap<>();
+        for (String variable : queryVariables) {
+            query.put(variable, null);
+        }
+        List<String> hidden = new ArrayList<>();
+        for (BayesianNode node : network.getNodes()) {
+            if (!query.containsKey(node.getName()) && !evidence.containsKey(node.getName())) {
+                hidden.add(node.getName());
+            }
+        }
+        return new VariableElimination(network, new HashMap<>(evidence), query, hidden, options, cache, true).computePosterior();
+    }
+
+
+    // Engine that runs an elimination for every query, sharing factors between queries when the cache is enabled
+    public static InferenceEngine engine(BayesianNetwork network, InferenceOptions options) {
+        FactorCache cache = options.getFactorCacheBytes() > 0 ? new FactorCache(options.getFactorCacheBytes()) : null;
+        return new InferenceEngine() {
+            @Override
+            public QueryResult query(Map<String, String> queryVariables, Map<String, String> evidence, List<String> hiddenVariables) {
+                if (cache != null) {
+                    cache.validate(network.getVersion());
+                }
+                return answer(network, queryVariables, evidence, hiddenVariables, options, cache);
+            }
+
+            @Override
+            public Posterior posterior(List<String> queryVariables, Map<String, String> evidence) {
+                if (cache != null) {
+                    cache.validate(network.getVersion());
+                }
+                return VariableElimination.posterior(network, queryVariables, evidence, options, cache);
+            }
+
+            @Override
+            public void reportStatistics(PrintStream out) {
+                if (cache != null) {
+                    out.println(cache);
+                }
+            }
+        };
+    }
+
+    // One query through a fresh elimination, with its metrics recorded; the maps and order are pruned in place
+    static QueryResult answer(BayesianNetwork network, Map<String, String> queryVariables, Map<String, String> evidence,
+                              List<String> hiddenVariables, InferenceOptions options, FactorCache cache) {
+        InferenceEvents.Query event = new InferenceEvents.Query();
+        event.begin();
+        String description = event.isEnabled() ? queryVariables + " | " + evidence : null;
+        long start = System.nanoTime();
+        VariableElimination ve = new VariableElimination(network, evidence, queryVariables, hiddenVariables, options, cache);
+        if (options.isReportOrders()) {
+            System.err.println(queryVariables + " | " + evidence + " predicted max factor sizes: " + ve.predictMaxFactorSizes());
+        }
+        double result = ve.run();
+        ve.recordMetrics(System.nanoTime() - start, event, description);
+        return new QueryResult(result, ve.getAdditionCount(), ve.getMultiplicationCount());
     }
 
+    // Add this query's phase times and factor sizes to the process metrics and the JFR query event
+    private void recordMetrics(long queryNanos, InferenceEvents.Query event, String description) {
+        for (InferenceMetrics.Phase phase : InferenceMetrics.Phase.values()) {
+            if (phaseNanos[phase.ordinal()] > 0) {
+                InferenceMetrics.phase(phase, phaseNanos[phase.ordinal()]);
+            }
+        }
+        InferenceMetrics.query(queryNanos);
+        event.end();
+        if (event.shouldCommit()) {
+            event.engine = "ve";
+            event.query = description;
+            event.evidence = evidence.size();
+            event.eliminated = hiddenVariables.size();
+            event.additions = additionCount;
+            event.multiplications = multiplicationCount;
+            event.maxFactorSize = maxFactorSize;
+            event.maxFactorWidth = maxFactorWidth;
+            event.initialize = phaseNanos[InferenceMetrics.Phase.INITIALIZE.ordinal()];
+            event.evidenceReduction = phaseNanos[InferenceMetrics.Phase.EVIDENCE.ordinal()];
+            event.filter = phaseNanos[InferenceMetrics.Phase.FILTER.ordinal()];
+            event.order = phaseNanos[InferenceMetrics.Phase.ORDER.ordinal()];
+            event.eliminate = phaseNanos[InferenceMetrics.Phase.ELIMINATE.ordinal()];
+            event.finalizeTime = phaseNanos[InferenceMetrics.Phase.FINALIZE.ordinal()];
+            event.commit();
+        }
+    }
+
+    // A factor this query built
+    private Factor track(Factor factor) {
+        maxFactorSize = Math.max(maxFactorSize, factor.tableSize());
+        maxFactorWidth = Math.max(maxFactorWidth, factor.size());
+        InferenceMetrics.factor(factor.tableSize(), factor.size());
+        return factor;
+    }
 
-    // Initialize factors from the Bayesian network
+    // Initialize factors from the Bayesian network, already restricted to the evidence
     private void initializeFactors() {
         for (BayesianNode node : network.getNodes()) {
-            List<String> variables = new ArrayList<>(node.getGiven());
-            variables.add(node.getName());
-            Factor factor = new Factor(variables);
-            populateFactor(factor, node);
-            factors.add(factor);
+            factors.add(cache == null ? restrictedCPT(node) : cachedCPT(node));
         }
     }
 
-    private void populateFactor(Factor factor, BayesianNode node) {
-        Map<List<String>, Double> cpt = node.getCPT();
-        for (Map.Entry<List<String>, Double> entry : cpt.entrySet()) {
-            factor.setProbability(entry.getKey(), entry.getValue());
+    // CPT restricted to the evidence, as a view over the node's own table: the factor lists the parents then the node,
+    // which is exactly the layout of the table, so each observed family member only moves the offset and drops its stride.
+    // The shared table is never written; a snapshot's mapped table is copied to the heap first.
+    private Factor restrictedCPT(BayesianNode node) {
+        List<String> family = new ArrayList<>(node.getGiven());
+        family.add(node.getName());
+        int[] familyIds = new int[family.size()];
+        int[] familyStrides = new int[family.size()];
+        int stride = 1;
+        for (int i = family.size() - 1; i >= 0; i--) {
+            familyIds[i] = network.getId(family.get(i));
+            if (familyIds[i] < 0) {
+                throw new RuntimeException("No outcomes found for variable: " + family.get(i));
+            }
+            familyStrides[i] = stride;
+            stride *= network.getNode(familyIds[i]).getOutcomes().size();
+        }
+
+        long start = System.nanoTime();
+        List<String> variables = new ArrayList<>();
+        List<List<String>> domains = new ArrayList<>();
+        int[] ids = new int[family.size()];
+        int[] strides = new int[family.size()];
+        int kept = 0;
+        int offset = 0;
+        boolean impossible = false;
+        for (int i = 0; i < family.size(); i++) {
+            List<String> outcomes = network.getNode(familyIds[i]).getOutcomes();
+            String value = evidence.get(family.get(i));
+            if (value == null) {
+                variables.add(family.get(i));
+                domains.add(outcomes);
+                ids[kept] = familyIds[i];
+                strides[kept++] = familyStrides[i];
+            } else if (outcomes.indexOf(value) < 0) {
+                impossible = true; // An outcome the variable does not have matches no entry
+            } else {
+                offset += outcomes.indexOf(value) * familyStrides[i];
+            }
         }
+        lap(InferenceMetrics.Phase.EVIDENCE, start);
+        if (impossible) {
+            return newFactor(variables);
+        }
+
+        DoubleBuffer table = node.getProbabilities();
+        if (!table.hasArray()) {
+            // A mapped table has no array to view: copy out only the entries the evidence leaves
+            Factor restricted = new Factor(variables, Arrays.copyOf(ids, kept), domains);
+            FactorKernels.gather(table, offset, Arrays.copyOf(strides, kept), restricted.getCardinalities(),
+                    restricted.getValues());
+            return restricted;
+        }
+        return Factor.view(variables, Arrays.copyOf(ids, kept), domains, table.array(), offset + table.arrayOffset(),
+                Arrays.copyOf(strides, kept));
     }
 
-    // Apply evidence to the factors
-    private void applyEvidence() {
-        for (Factor factor : factors) {
-            for (Map.Entry<String, String> entry : evidence.entrySet()) {
-                if (factor.getVariables().contains(entry.getKey())) {
-                    reduceFactor(factor, entry.getKey(), entry.getValue());
-                }
+    // Restricted CPT shared through the cache, keyed by the node and the evidence on its family
+    private Factor cachedCPT(BayesianNode node) {
+        int id = network.getId(node.getName());
+        int[] family = Arrays.copyOf(network.getParents(id), network.getParents(id).length + 1);
+        family[family.length - 1] = id;
+        Arrays.sort(family);
+        int[] restriction = new int[2 * family.length];
+        int length = 0;
+        for (int member : family) {
+            BayesianNode familyNode = network.getNode(member);
+            String value = evidence.get(familyNode.getName());
+            if (value != null) {
+                restriction[length++] = member;
+                restriction[length++] = familyNode.getOutcomes().indexOf(value);
             }
         }
+        FactorCache.Key key = FactorCache.Key.cpt(id, Arrays.copyOf(restriction, length));
+
+        FactorCache.Entry entry = cache.get(key);
+        Factor factor = entry != null ? entry.getFactor() : restrictedCPT(node);
+        if (entry == null) {
+            cache.put(key, factor, 0, 0);
+        }
+        keys.put(factor, key);
+        return factor;
     }
 
-    // Reduce factor based on evidence
-    private void reduceFactor(Factor factor, String variable, String value) {
-        Map<List<String>, Double> newTable = new HashMap<>();
-        int index = factor.getVariables().indexOf(variable);
-        for (Map.Entry<List<String>, Double> entry : factor.getTable().entrySet()) {
-            if (entry.getKey().get(index).equals(value)) {
-                List<String> newOutcomes = new ArrayList<>(entry.getKey());
-                newOutcomes.remove(index);
-                newTable.put(newOutcomes, entry.getValue());
+    // Create an empty factor over the given variables, resolving their ids and outcomes
+    private Factor newFactor(List<String> variables) {
+        int[] ids = new int[variables.size()];
+        List<List<String>> domains = new ArrayList<>();
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = network.getId(variables.get(i));
+            if (ids[i] < 0) {
+                throw new RuntimeException("No outcomes found for variable: " + variables.get(i));
             }
+            domains.add(network.getNode(ids[i]).getOutcomes());
         }
-        factor.getVariables().remove(variable);
-        factor.getTable().clear();
-        factor.getTable().putAll(newTable);
+        return new Factor(variables, ids, domains);
     }
 
-    // Filter irrelevant variables and factors
+    // Filter irrelevant variables and factors.
+    // A hidden variable stays if it is an ancestor of a query or evidence variable and d-connected to the query given
+    // the evidence; an evidence variable stays if it is d-connected to the query given the other evidence. Both come from
+    // one ancestral closure and one Bayes-Ball pass from the query: the ball reaches an observed variable exactly when a
+    // trail to it is active given the rest of the evidence.
     private void filterIrrelevantVariables() {
+        String query = queryVariables.keySet().iterator().next();
+        int queryId = network.getId(query);
+        if (queryId < 0 || evidence.containsKey(query)) {
+            filterIrrelevantVariablesPairwise(); // The single pass relies on the query being an unobserved node
+            return;
+        }
+
+        BitSet observed = new BitSet(network.size());
+        BitSet ancestral = new BitSet(network.size());
+        for (String variable : evidence.keySet()) {
+            int id = network.getId(variable);
+            if (id >= 0) {
+                observed.set(id);
+                ancestral.set(id);
+                ancestral.or(network.getAncestors(id));
+            }
+        }
+        for (String variable : queryVariables.keySet()) {
+            int id = network.getId(variable);
+            if (id >= 0) {
+                ancestral.set(id);
+                ancestral.or(network.getAncestors(id));
+            }
+        }
+        BitSet connected = new BayesBall(network).reachable(queryId, observed);
+
+        Set<String> toRemove = new HashSet<>();
+        for (String hiddenVar : hiddenVariables) {
+            int id = network.getId(hiddenVar);
+            boolean relevant = id == queryId || (id >= 0 && ancestral.get(id) && connected.get(id) && !observed.get(id));
+            if (!relevant) {
+                toRemove.add(hiddenVar);
+            }
+        }
+        hiddenVariables.removeAll(toRemove);
+        factors.removeIf(factor -> !Collections.disjoint(factor.getVariables(), toRemove));
+
+        evidence.keySet().removeIf(evidenceVar -> {
+            int id = network.getId(evidenceVar);
+            return id < 0 || !connected.get(id);
+        });
+    }
+
+    // One ancestor test per (hidden, relevant) pair and one independence test per hidden and evidence variable
+    private void filterIrrelevantVariablesPairwise() {
         BayesBall bayesBall = new BayesBall(network);
         Set<String> relevantVariables = new HashSet<>(queryVariables.keySet());
         relevantVariables.addAll(evidence.keySet());
@@ -108,28 +367,71 @@ public class VariableElimination {
     }
 
 
-    // Breadth-first search to check if one variable is an ancestor of another
-    private static boolean isAncestor(String hidden, String target, BayesianNetwork bn) {
-        Queue<String> queue = new LinkedList<>();
-        Set<String> visited = new HashSet<>();
-        queue.add(target);
-        while (!queue.isEmpty()) {
-            String current = queue.poll();
-            if (current.equals(hidden)) {
-                return true;
-            }
-            if (visited.add(current)) {
-                BayesianNode currentNode = bn.getNode(current);
-                if (currentNode != null) {
-                    queue.addAll(currentNode.getGiven());
-                }
+    // Drop hidden variables that are not ancestors of a query or evidence variable, and their factors.
+    // Summing them out would only multiply by one, so the joint of the query and evidence is unchanged.
+    private void removeBarrenVariables() {
+        BitSet ancestral = new BitSet(network.size());
+        for (String variable : queryVariables.keySet()) {
+            markAncestral(variable, ancestral);
+        }
+        for (String variable : evidence.keySet()) {
+            markAncestral(variable, ancestral);
+        }
+        Set<String> toRemove = new HashSet<>();
+        for (String hiddenVar : hiddenVariables) {
+            if (!ancestral.get(network.getId(hiddenVar))) {
+                toRemove.add(hiddenVar);
             }
         }
-        return false;
+        hiddenVariables.removeAll(toRemove);
+        factors.removeIf(factor -> !Collections.disjoint(factor.getVariables(), toRemove));
+    }
+
+    private void markAncestral(String variable, BitSet ancestral) {
+        int id = network.getId(variable);
+        if (id < 0) {
+            throw new IllegalArgumentException("No variable named " + variable);
+        }
+        ancestral.set(id);
+        ancestral.or(network.getAncestors(id));
+    }
+
+    // Reorder the remaining hidden variables with the configured strategy and predict the largest factor
+    private void orderHiddenVariables() {
+        EliminationOrdering ordering = new EliminationOrdering(factors);
+        givenOrder = new ArrayList<>(hiddenVariables);
+        List<String> order = ordering.order(options.getOrdering(), givenOrder);
+        hiddenVariables.clear();
+        hiddenVariables.addAll(order);
+        predictedMaxFactorSize = ordering.maxFactorSize(order);
+    }
+
+    // Number of entries of the largest factor the chosen order will build
+    public long getPredictedMaxFactorSize() {
+        return predictedMaxFactorSize;
+    }
+
+    // Largest factor every ordering strategy would build for this query
+    public Map<EliminationOrdering.Strategy, Long> predictMaxFactorSizes() {
+        EliminationOrdering ordering = new EliminationOrdering(factors);
+        Map<EliminationOrdering.Strategy, Long> sizes = new EnumMap<>(EliminationOrdering.Strategy.class);
+        for (EliminationOrdering.Strategy strategy : EliminationOrdering.Strategy.values()) {
+            sizes.put(strategy, ordering.maxFactorSize(ordering.order(strategy, givenOrder)));
+        }
+        return sizes;
+    }
+
+    // Check if one variable is an ancestor of another (or the same), using the network's ancestor sets
+    private static boolean isAncestor(String hidden, String target, BayesianNetwork bn) {
+        return bn.isAncestor(hidden, target);
     }
 
     // Perform the variable elimination algorithm
     public double run() {
+        if (predictedMaxFactorSize > options.getMaxFactorSize()) {
+            throw new IllegalStateException("Predicted intermediate factor of " + predictedMaxFactorSize
+                    + " entries exceeds the limit of " + options.getMaxFactorSize());
+        }
         factors.removeIf(factor -> factor.size() == 0);
 
         if(factors.size() == 1){
@@ -163,28 +465,132 @@ public class VariableElimination {
             // Sort the factors by size before joining them
             Collections.sort(factorsWithHidden);
 
-            // Ensure correct order of joining factors
-            Factor joinedFactor = factorsWithHidden.get(0);
-            for (int i = 1; i < factorsWithHidden.size(); i++) {
-                joinedFactor = multiply(joinedFactor, factorsWithHidden.get(i));
-            }
-
-            Factor reducedFactor = eliminateVariable(joinedFactor, hidden);
+            Factor reducedFactor = eliminate(factorsWithHidden, hidden);
 
             factors.removeAll(factorsWithHidden);
             factors.add(reducedFactor);
         }
 
+        long start = System.nanoTime();
         Factor finalFactor = joinFactors(factors);
         if (getMultiplicationCount() > 0 ){
+            if (keys.containsKey(finalFactor) || finalFactor.isView()) {
+                finalFactor = finalFactor.copy(); // Cached factors and CPT views are shared, so normalize a private copy
+            }
             normalize(finalFactor);
         }
+        lap(InferenceMetrics.Phase.FINALIZE, start);
 
         // Extract the probability for the query variable from the final factor
-        double result = finalFactor.getProbability(getQueryOutcomes());
+        double result = Math.scalb(finalFactor.getProbability(getQueryOutcomes()), finalFactor.getExponent());
+        return result;
+    }
+
+    // One elimination step, timed and reported as a JFR event
+    private Factor eliminate(List<Factor> factorsWithHidden, String hidden) {
+        InferenceEvents.Elimination event = new InferenceEvents.Elimination();
+        event.begin();
+        long start = System.nanoTime();
+        lastBucketCached = false;
+        Factor reducedFactor = cache == null
+                ? eliminateBucket(factorsWithHidden, hidden)
+                : cachedBucket(factorsWithHidden, hidden);
+        lap(InferenceMetrics.Phase.ELIMINATE, start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.variable = hidden;
+            event.factors = factorsWithHidden.size();
+            event.resultSize = reducedFactor.tableSize();
+            event.resultWidth = reducedFactor.size();
+            event.cached = lastBucketCached;
+            event.commit();
+        }
+        return reducedFactor;
+    }
+
+    // Join the sorted factors of a bucket and sum out its variable; the last product is fused with the elimination
+    private Factor eliminateBucket(List<Factor> factorsWithHidden, String hidden) {
+        Factor joinedFactor = factorsWithHidden.get(0);
+        int last = factorsWithHidden.size() - 1;
+        for (int i = 1; i < last; i++) {
+            joinedFactor = multiply(joinedFactor, factorsWithHidden.get(i));
+        }
+        return last == 0
+                ? eliminateVariable(joinedFactor, hidden)
+                : multiplyAndEliminate(joinedFactor, factorsWithHidden.get(last), hidden);
+    }
+
+    // Bucket result shared through the cache; a hit adds the counts the elimination would have spent
+    private Factor cachedBucket(List<Factor> factorsWithHidden, String hidden) {
+        List<FactorCache.Key> inputs = new ArrayList<>();
+        for (Factor factor : factorsWithHidden) {
+            FactorCache.Key input = keys.get(factor);
+            if (input == null) {
+                return eliminateBucket(factorsWithHidden, hidden);
+            }
+            inputs.add(input);
+        }
+        FactorCache.Key key = FactorCache.Key.eliminated(network.getId(hidden), inputs);
+
+        FactorCache.Entry entry = cache.get(key);
+        if (entry != null) {
+            additionCount += entry.getAdditions();
+            multiplicationCount += entry.getMultiplications();
+            keys.put(entry.getFactor(), key);
+            lastBucketCached = true;
+            return entry.getFactor();
+        }
+        int additionsBefore = additionCount;
+        int multiplicationsBefore = multiplicationCount;
+        Factor result = eliminateBucket(factorsWithHidden, hidden);
+        cache.put(key, result, additionCount - additionsBefore, multiplicationCount - multiplicationsBefore);
+        keys.put(result, key);
         return result;
     }
 
+    // Eliminate every remaining hidden variable and normalize the product over the query variables.
+    // Constant factors left by the evidence are kept, since they are part of P(evidence).
+    private Posterior computePosterior() {
+        if (predictedMaxFactorSize > options.getMaxFactorSize()) {
+            throw new IllegalStateException("Predicted intermediate factor of " + predictedMaxFactorSize
+                    + " entries exceeds the limit of " + options.getMaxFactorSize());
+        }
+        for (String hidden : hiddenVariables) {
+            List<Factor> factorsWithHidden = new ArrayList<>();
+            for (Factor factor : factors) {
+                if (factor.getVariables().contains(hidden)) {
+                    factorsWithHidden.add(factor);
+                }
+            }
+            if (factorsWithHidden.isEmpty()) {
+                continue;
+            }
+            Collections.sort(factorsWithHidden);
+            Factor reducedFactor = eliminate(factorsWithHidden, hidden);
+            factors.removeAll(factorsWithHidden);
+            factors.add(reducedFactor);
+        }
+
+        // Lay the product out in the requested variable order, then normalize it
+        Factor product = joinFactors(factors);
+        Factor distribution = newFactor(new ArrayList<>(queryVariables.keySet()));
+        FactorKernels.marginalize(product.materialize().getValues(), product.getCardinalities(),
+                distribution.stridesAlong(product.getIds()), distribution.getValues());
+        double[] values = distribution.getValues();
+        double evidenceProbability = 0;
+        for (double value : values) {
+            evidenceProbability += value;
+        }
+        additionCount += values.length - 1;
+        if (evidenceProbability == 0) {
+            throw new IllegalStateException("The evidence has probability zero.");
+        }
+        FactorKernels.divide(values, evidenceProbability);
+        int exponent = product.getExponent();
+        return new Posterior(distribution, Math.scalb(evidenceProbability, exponent),
+                Math.log(evidenceProbability) + exponent * Math.log(2), additionCount, multiplicationCount);
+    }
+
     // Get the outcomes for the query variables
     private List<String> getQueryOutcomes() {
         List<String> outcomes = new ArrayList<>();
@@ -212,59 +618,56 @@ public class VariableElimination {
 
     // Multiply two factors
     private Factor multiply(Factor f1, Factor f2) {
-        List<String> newVariables = new ArrayList<>(f1.getVariables());
-        for (String var : f2.getVariables()) {
-            if (!newVariables.contains(var)) {
-                newVariables.add(var);
-            }
-        }
-
-        Factor result = new Factor(newVariables);
-        generateOutcomes(newVariables.size(), new ArrayList<>(), result, f1, f2);
-        return result;
+        Factor result = newFactor(productVariables(f1, f2));
+        int[] resultIds = result.getIds();
+        FactorKernels.product(f1.getStorage(), f1.getOffset(), f1.stridesAlong(resultIds),
+                f2.getStorage(), f2.getOffset(), f2.stridesAlong(resultIds), result.getCardinalities(), result.getValues());
+        multiplicationCount += result.tableSize();
+        result.setExponent(f1.getExponent() + f2.getExponent());
+        rescale(result);
+        return track(result);
     }
 
-    private void generateOutcomes(int size, List<String> currentOutcomes, Factor result, Factor f1, Factor f2) {
-        if (currentOutcomes.size() == size) {
-            List<String> f1Outcomes = new ArrayList<>();
-            List<String> f2Outcomes = new ArrayList<>();
-
-            for (String var : f1.getVariables()) {
-                int index = result.getVariables().indexOf(var);
-                f1Outcomes.add(currentOutcomes.get(index));
-            }
-
-            for (String var : f2.getVariables()) {
-                int index = result.getVariables().indexOf(var);
-                f2Outcomes.add(currentOutcomes.get(index));
-            }
-
-            double probability = f1.getProbability(f1Outcomes) * f2.getProbability(f2Outcomes);
-            multiplicationCount++;
-            result.setProbability(currentOutcomes, probability);
-            return;
+    // Multiply two factors and eliminate a variable of the product without materializing the product
+    private Factor multiplyAndEliminate(Factor f1, Factor f2, String variable) {
+        List<String> productVariables = productVariables(f1, f2);
+        int index = productVariables.indexOf(variable);
+        if (index == -1) {
+            throw new IllegalArgumentException("Variable to eliminate not found in factor.");
         }
+        List<String> newVariables = new ArrayList<>(productVariables);
+        newVariables.remove(index);
+        Factor result = newFactor(newVariables);
 
-        String currentVariable = result.getVariables().get(currentOutcomes.size());
-        for (String outcome : getPossibleOutcomes(currentVariable)) {
-            currentOutcomes.add(outcome);
-            generateOutcomes(size, currentOutcomes, result, f1, f2);
-            currentOutcomes.removeLast();
+        int[] productIds = new int[productVariables.size()];
+        int[] productCardinalities = new int[productIds.length];
+        for (int i = 0; i < productIds.length; i++) {
+            productIds[i] = network.getId(productVariables.get(i));
+            productCardinalities[i] = network.getNode(productIds[i]).getOutcomes().size();
         }
+        FactorKernels.productSumOut(f1.getStorage(), f1.getOffset(), f1.stridesAlong(productIds),
+                f2.getStorage(), f2.getOffset(), f2.stridesAlong(productIds), productCardinalities, index, result.getValues());
+        multiplicationCount += result.tableSize() * productCardinalities[index];
+        additionCount += result.tableSize() * (productCardinalities[index] - 1);
+        result.setExponent(f1.getExponent() + f2.getExponent());
+        rescale(result);
+        return track(result);
     }
 
-    // Helper method to generate possible outcomes for a variable
-    private List<String> getPossibleOutcomes(String variable) {
-        for (BayesianNode node : network.getNodes()) {
-            if (node.getName().equals(variable)) {
-                return node.getOutcomes();
+    // Variables of a product: those of the first factor followed by the new ones of the second
+    private static List<String> productVariables(Factor f1, Factor f2) {
+        List<String> newVariables = new ArrayList<>(f1.getVariables());
+        for (String var : f2.getVariables()) {
+            if (!newVariables.contains(var)) {
+                newVariables.add(var);
             }
         }
-        throw new RuntimeException("No outcomes found for variable: " + variable);
+        return newVariables;
     }
 
-    // Eliminate a variable from a factor
-    private Factor eliminateVariable(Factor factor, String variable) {
+    // Eliminate a variable from a factor; summing out needs the contiguous table
+    private Factor eliminateVariable(Factor view, String variable) {
+        Factor factor = view.materialize();
         List<String> newVariables = new ArrayList<>(factor.getVariables());
         int index = newVariables.indexOf(variable);
         if (index == -1) {
@@ -272,42 +675,50 @@ public class VariableElimination {
         }
         newVariables.remove(index);
 
-        Factor result = new Factor(newVariables);
-        Map<List<String>, Double> newTable = new HashMap<>();
+        Factor result = newFactor(newVariables);
 
-        // Determine the number of outcomes for the variable to be eliminated
-        Set<String> outcomesSet = new HashSet<>();
-        for (List<String> outcomes : factor.getTable().keySet()) {
-            outcomesSet.add(outcomes.get(index));
-        }
-        int numOutcomes = outcomesSet.size(); // Number of unique outcomes for the eliminated variable
+        // Number of outcomes for the variable to be eliminated
+        int numOutcomes = factor.getCardinalities()[index];
 
-        for (Map.Entry<List<String>, Double> entry : factor.getTable().entrySet()) {
-            List<String> outcomes = new ArrayList<>(entry.getKey());
-            outcomes.remove(index);
+        FactorKernels.sumOut(factor.getValues(), factor.getStrides()[index], numOutcomes, result.getValues());
 
-            newTable.putIfAbsent(outcomes, 0.0);
-            newTable.put(outcomes, newTable.get(outcomes) + entry.getValue());
-        }
-
-        result.getTable().putAll(newTable);
         additionCount += result.tableSize() * (numOutcomes - 1); // Correct calculation for additionCount
+        result.setExponent(factor.getExponent());
+        rescale(result);
 
-        return result;
+        return track(result);
+    }
+
+    // Scaled arithmetic: move a factor whose values drift towards underflow (or overflow) back around 1 and keep the
+    // power of two in its exponent. Scaling by a power of two is exact, so answers only differ from the plain doubles
+    // where those would have lost precision.
+    private void rescale(Factor factor) {
+        if (!scaled) {
+            return;
+        }
+        double max = FactorKernels.max(factor.getValues());
+        if (max == 0 || !Double.isFinite(max)) {
+            return;
+        }
+        int exponent = Math.getExponent(max);
+        if (Math.abs(exponent) > RESCALE_LIMIT) {
+            FactorKernels.scale(factor.getValues(), -exponent);
+            factor.setExponent(factor.getExponent() + exponent);
+        }
     }
 
 
 
     // Normalize the final factor
     private void normalize(Factor factor) {
+        double[] values = factor.getValues();
         double sum = 0;
-        for (double value : factor.getTable().values()) {
+        for (double value : values) {
             sum += value;
             if (sum > 0) additionCount++;
         }
-        for (Map.Entry<List<String>, Double> entry : factor.getTable().entrySet()) {
-            factor.getTable().put(entry.getKey(), entry.getValue() / sum);
-        }
+        FactorKernels.divide(values, sum);
+        factor.setExponent(0);
         additionCount--;
     }
 
@@ -331,8 +742,6 @@ public class VariableElimination {
     // Print a single factor for debugging
     private void printFactor(Factor factor) {
         System.out.println("Variables: " + factor.getVariables());
-        for (Map.Entry<List<String>, Double> entry : factor.getTable().entrySet()) {
-            System.out.println("Outcomes: " + entry.getKey() + " -> Probability: " + entry.getValue());
-        }
+        System.out.println("Probabilities: " + Arrays.toString(factor.materialize().getValues()));
     }
 }
\ No newline at end of file
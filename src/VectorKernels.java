@@ -0,0 +1,165 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD versions of the innermost FactorKernels loops, on the incubating JDK Vector API.
+// This class needs --add-modules jdk.incubator.vector to compile and to load; FactorKernels only touches it once it
+// has found the module in the boot layer, and runs its scalar loops otherwise.
+// Operand strides are 0 (one entry repeated in every lane) or 1 (consecutive entries). Each lane does exactly the
+// multiplications and additions the scalar loop does for its entry, in the same order and without fused multiply-adds,
+// so the results are bit-identical. The horizontal sums are the exception: they add the lanes in another order and
+// are only used by the relaxed vectorization.
+public final class VectorKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorKernels() {
+    }
+
+    // Doubles per vector on this machine
+    public static int lanes() {
+        return SPECIES.length();
+    }
+
+    // out[position + i] = a[indexA + i * strideA] * b[indexB + i * strideB] for i < length
+    public static void multiply(double[] a, int indexA, int strideA, double[] b, int indexB, int strideB,
+                                double[] out, int position, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            load(a, indexA + i * strideA, strideA).mul(load(b, indexB + i * strideB, strideB)).intoArray(out, position + i);
+        }
+        for (; i < length; i++) {
+            out[position + i] = a[indexA + i * strideA] * b[indexB + i * strideB];
+        }
+    }
+
+    // target[position + i] *= b[indexB + i * strideB] for i < length
+    public static void multiplyInto(double[] target, int position, double[] b, int indexB, int strideB, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, target, position + i).mul(load(b, indexB + i * strideB, strideB))
+                    .intoArray(target, position + i);
+        }
+        for (; i < length; i++) {
+            target[position + i] *= b[indexB + i * strideB];
+        }
+    }
+
+    // out[position + i] = sum over k < cardinality of a[ka] * b[kb], with ka = indexA + i * strideA + k * eliminatedStrideA
+    // and kb likewise: a row of consecutive outputs of productSumOut, each lane summing its own terms in increasing k
+    public static void productSumOut(double[] a, int indexA, int strideA, double[] b, int indexB, int strideB,
+                                     int cardinality, int eliminatedStrideA, int eliminatedStrideB,
+                                     double[] out, int position, int length) {
+        int bound = SPECIES.loopBound(length);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (int k = 0, ka = indexA + i * strideA, kb = indexB + i * strideB; k < cardinality;
+                 k++, ka += eliminatedStrideA, kb += eliminatedStrideB) {
+                sum = sum.add(load(a, ka, strideA).mul(load(b, kb, strideB)));
+            }
+            sum.intoArray(out, position + i);
+        }
+        for (; i < length; i++) {
+            double sum = 0.0;
+            for (int k = 0, ka = indexA + i * strideA, kb = indexB + i * strideB; k < cardinality;
+                 k++, ka += eliminatedStrideA, kb += eliminatedStrideB) {
+                sum += a[ka] * b[kb];
+            }
+            out[position + i] = sum;
+        }
+    }
+
+    // out[position + j] = sum over k < cardinality of source[base + k * inner + j] for j < inner:
+    // one (outcome, inner) block of sumOut, summed down its columns
+    public static void sumOut(double[] source, int base, int inner, int cardinality, double[] out, int position) {
+        int bound = SPECIES.loopBound(inner);
+        int j = 0;
+        for (; j < bound; j += SPECIES.length()) {
+            DoubleVector sum = DoubleVector.zero(SPECIES);
+            for (int k = 0, index = base + j; k < cardinality; k++, index += inner) {
+                sum = sum.add(DoubleVector.fromArray(SPECIES, source, index));
+            }
+            sum.intoArray(out, position + j);
+        }
+        for (; j < inner; j++) {
+            double sum = 0.0;
+            for (int k = 0, index = base + j; k < cardinality; k++, index += inner) {
+                sum += source[index];
+            }
+            out[position + j] = sum;
+        }
+    }
+
+    // Horizontal sum of a[indexA + i * strideA] * b[indexB + i * strideB] over i < length, in lane order
+    public static double dot(double[] a, int indexA, int strideA, double[] b, int indexB, int strideB, int length) {
+        int bound = SPECIES.loopBound(length);
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            sum = sum.add(load(a, indexA + i * strideA, strideA).mul(load(b, indexB + i * strideB, strideB)));
+        }
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            total += a[indexA + i * strideA] * b[indexB + i * strideB];
+        }
+        return total;
+    }
+
+    // Horizontal sum of values[from, from + length), in lane order
+    public static double sum(double[] values, int from, int length) {
+        int bound = SPECIES.loopBound(length);
+        DoubleVector sum = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            sum = sum.add(DoubleVector.fromArray(SPECIES, values, from + i));
+        }
+        double total = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            total += values[from + i];
+        }
+        return total;
+    }
+
+    // values[i] /= divisor for i in [from, to); a division, not a multiplication by the reciprocal, as in the scalar loop
+    public static void divide(double[] values, int from, int to, double divisor) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, values, i).div(divisor).intoArray(values, i);
+        }
+        for (; i < to; i++) {
+            values[i] /= divisor;
+        }
+    }
+
+    // values[i] *= factor for i in [from, to)
+    public static void scale(double[] values, int from, int to, double factor) {
+        int i = from;
+        for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+            DoubleVector.fromArray(SPECIES, values, i).mul(factor).intoArray(values, i);
+        }
+        for (; i < to; i++) {
+            values[i] *= factor;
+        }
+    }
+
+    // Largest entry and 0, NaN if there is one; max does not depend on the order, so this matches the scalar loop
+    public static double max(double[] values) {
+        int bound = SPECIES.loopBound(values.length);
+        DoubleVector max = DoubleVector.zero(SPECIES);
+        int i = 0;
+        for (; i < bound; i += SPECIES.length()) {
+            max = max.max(DoubleVector.fromArray(SPECIES, values, i));
+        }
+        double result = max.reduceLanes(VectorOperators.MAX);
+        for (; i < values.length; i++) {
+            result = Math.max(result, values[i]);
+        }
+        return result;
+    }
+
+    private static DoubleVector load(double[] values, int index, int stride) {
+        return stride == 0 ? DoubleVector.broadcast(SPECIES, values[index]) : DoubleVector.fromArray(SPECIES, values, index);
+    }
+}
@@ -1,98 +1,391 @@
-import org.w3c.dom.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import java.io.File;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.DoubleBuffer;
 import java.util.*;
 
+// Streaming XMLBIF loader: reads the file once with StAX and parses TABLE numbers straight into double arrays
 public class XMLParser {
 
+    // A malformed network file, with the line the problem was found on
+    public static class ParseException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int line;
+
+        public ParseException(String file, int line, String message, Throwable cause) {
+            super(file + ":" + line + ": " + message, cause);
+            this.line = line;
+        }
+
+        public int getLine() {
+            return line;
+        }
+    }
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    private final String file;
+    private final XMLStreamReader reader;
+    private final StringBuilder text = new StringBuilder();
+    private boolean capturing;
+    private final char[] token = new char[64];
+    private int tokenLength;
+    private double[] table = new double[16];
+    private int tableLength;
+
+    private XMLParser(String file, XMLStreamReader reader) {
+        this.file = file;
+        this.reader = reader;
+    }
+
+    // A DEFINITION is resolved once all VARIABLEs are known, since XMLBIF does not order them
+    private static final class Definition {
+        String name;
+        final List<String> given = new ArrayList<>();
+        double[] table;
+        int line;
+    }
+
     public static BayesianNetwork parseXML(String filePath) {
+        InferenceEvents.Load event = new InferenceEvents.Load();
+        event.begin();
+        long start = System.nanoTime();
+        BayesianNetwork network = parse(filePath);
+        long bytes = new File(filePath).length();
+        InferenceMetrics.load(bytes, System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = filePath;
+            event.bytes = bytes;
+            event.nodes = network.size();
+            event.commit();
+        }
+        return network;
+    }
+
+    private static BayesianNetwork parse(String filePath) {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        try (InputStream in = new BufferedInputStream(new FileInputStream(filePath), 1 << 16)) {
+            XMLStreamReader reader = factory.createXMLStreamReader(in);
+            try {
+                return new XMLParser(filePath, reader).parse();
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            int line = e.getLocation() != null ? e.getLocation().getLineNumber() : -1;
+            throw new ParseException(filePath, line, e.getMessage(), e);
+        } catch (IOException e) {
+            throw new ParseException(filePath, 0, e.getMessage(), e);
+        }
+    }
+
+    private BayesianNetwork parse() throws XMLStreamException {
         BayesianNetwork network = new BayesianNetwork();
-        try {
-            File inputFile = new File(filePath);
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            Document doc = dBuilder.parse(inputFile);
-            doc.getDocumentElement().normalize();
-
-            NodeList variableList = doc.getElementsByTagName("VARIABLE");
-            Map<String, BayesianNode> nodeMap = new HashMap<>();
-            Map<String, List<String>> outcomeMap = new HashMap<>(); // To store outcomes for each variable
-
-            for (int temp = 0; temp < variableList.getLength(); temp++) {
-                Node nNode = variableList.item(temp);
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element eElement = (Element) nNode;
-                    String name = eElement.getElementsByTagName("NAME").item(0).getTextContent();
-                    NodeList outcomeNodes = eElement.getElementsByTagName("OUTCOME");
-                    List<String> outcomes = new ArrayList<>();
-                    for (int i = 0; i < outcomeNodes.getLength(); i++) {
-                        outcomes.add(outcomeNodes.item(i).getTextContent());
-                    }
-                    BayesianNode node = new BayesianNode(name, outcomes, new ArrayList<>());
-                    network.addNode(node);
-                    nodeMap.put(name, node);
-                    outcomeMap.put(name, outcomes); // Store outcomes for the variable
+        Map<String, Integer> variableLines = new HashMap<>();
+        List<Definition> definitions = new ArrayList<>();
+
+        String name = null;
+        List<String> outcomes = null;
+        Definition definition = null;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "VARIABLE":
+                        name = null;
+                        outcomes = new ArrayList<>();
+                        break;
+                    case "DEFINITION":
+                        definition = new Definition();
+                        definition.line = line();
+                        break;
+                    case "TABLE":
+                        readTable();
+                        if (definition != null) {
+                            definition.table = Arrays.copyOf(table, tableLength);
+                        }
+                        break;
+                    case "NAME":
+                    case "OUTCOME":
+                    case "FOR":
+                    case "GIVEN":
+                        text.setLength(0);
+                        capturing = true;
+                        break;
+                    default:
+                        break;
+                }
+            } else if (capturing && (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA)) {
+                text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                capturing = false;
+                switch (reader.getLocalName()) {
+                    case "NAME":
+                        if (outcomes != null) {
+                            name = text.toString().trim();
+                        }
+                        break;
+                    case "OUTCOME":
+                        if (outcomes != null) {
+                            outcomes.add(text.toString().trim());
+                        }
+                        break;
+                    case "VARIABLE":
+                        if (name == null || name.isEmpty()) {
+                            throw error("VARIABLE without a NAME");
+                        }
+                        if (variableLines.putIfAbsent(name, line()) != null) {
+                            throw error("Variable " + name + " is declared twice");
+                        }
+                        network.addNode(new BayesianNode(name, outcomes, new ArrayList<>()));
+                        outcomes = null;
+                        break;
+                    case "FOR":
+                        if (definition != null) {
+                            definition.name = text.toString().trim();
+                        }
+                        break;
+                    case "GIVEN":
+                        if (definition != null) {
+                            definition.given.add(text.toString().trim());
+                        }
+                        break;
+                    case "DEFINITION":
+                        definitions.add(definition);
+                        definition = null;
+                        break;
+                    default:
+                        break;
                 }
             }
+        }
 
-            NodeList definitionList = doc.getElementsByTagName("DEFINITION");
-            for (int temp = 0; temp < definitionList.getLength(); temp++) {
-                Node nNode = definitionList.item(temp);
-                if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-                    Element eElement = (Element) nNode;
-                    String name = eElement.getElementsByTagName("FOR").item(0).getTextContent();
-                    BayesianNode node = nodeMap.get(name);
-
-                    NodeList givenNodes = eElement.getElementsByTagName("GIVEN");
-                    List<String> given = new ArrayList<>();
-                    for (int i = 0; i < givenNodes.getLength(); i++) {
-                        given.add(givenNodes.item(i).getTextContent());
-                    }
-                    node.setGiven(given);
+        Map<String, Integer> definitionLines = new HashMap<>();
+        for (Definition d : definitions) {
+            resolve(network, d, definitionLines);
+        }
+        for (BayesianNode node : network.getNodes()) {
+            if (node.getProbabilities() == null) {
+                throw new ParseException(file, variableLines.get(node.getName()), "No DEFINITION for variable " + node.getName(), null);
+            }
+        }
+        checkAcyclic(network, definitionLines);
+        network.freeze();
+        return network;
+    }
 
-                    NodeList tableNodes = eElement.getElementsByTagName("TABLE");
-                    String[] tableValues = tableNodes.item(0).getTextContent().trim().split("\\s+");
-                    Map<List<String>, Double> cpt = new LinkedHashMap<>(); // Use LinkedHashMap to maintain order
+    // Attach parents and table to a node, checking the table has one entry per combination of outcomes
+    private void resolve(BayesianNetwork network, Definition d, Map<String, Integer> definitionLines) {
+        if (d.name == null) {
+            throw new ParseException(file, d.line, "DEFINITION without a FOR", null);
+        }
+        BayesianNode node = network.getNode(d.name);
+        if (node == null) {
+            throw new ParseException(file, d.line, "DEFINITION for unknown variable " + d.name, null);
+        }
+        if (definitionLines.putIfAbsent(d.name, d.line) != null) {
+            throw new ParseException(file, d.line, "Variable " + d.name + " is defined twice", null);
+        }
+        if (d.table == null) {
+            throw new ParseException(file, d.line, "DEFINITION for " + d.name + " has no TABLE", null);
+        }
+        long expected = node.getOutcomes().size();
+        for (String given : d.given) {
+            BayesianNode parent = network.getNode(given);
+            if (parent == null) {
+                throw new ParseException(file, d.line, "Unknown GIVEN variable " + given + " for " + d.name, null);
+            }
+            expected *= parent.getOutcomes().size();
+        }
+        if (d.table.length != expected) {
+            throw new ParseException(file, d.line, "TABLE for " + d.name + " has " + d.table.length
+                    + " entries, expected " + expected, null);
+        }
+        node.setGiven(new ArrayList<>(d.given));
+        node.setProbabilities(DoubleBuffer.wrap(d.table));
+    }
 
-                    // Collect all outcomes for the given variables and the current node
-                    List<List<String>> givenOutcomes = new ArrayList<>();
-                    for (String givenVar : given) {
-                        givenOutcomes.add(outcomeMap.get(givenVar));
+    // A directed cycle through the GIVEN lists, reported at the DEFINITION that closes it: the last one on it in the file.
+    // Depth-first over the parents, with an explicit stack since a chain of variables can be long.
+    private void checkAcyclic(BayesianNetwork network, Map<String, Integer> definitionLines) {
+        Map<String, Boolean> finished = new HashMap<>(); // false while on the current path
+        for (BayesianNode root : network.getNodes()) {
+            if (finished.containsKey(root.getName())) {
+                continue;
+            }
+            Deque<BayesianNode> path = new ArrayDeque<>();
+            Deque<Iterator<String>> parents = new ArrayDeque<>();
+            path.push(root);
+            parents.push(root.getGiven().iterator());
+            finished.put(root.getName(), false);
+            while (!path.isEmpty()) {
+                if (!parents.peek().hasNext()) {
+                    finished.put(path.pop().getName(), true);
+                    parents.pop();
+                    continue;
+                }
+                String parent = parents.peek().next();
+                Boolean state = finished.get(parent);
+                if (state == null) {
+                    BayesianNode node = network.getNode(parent);
+                    path.push(node);
+                    parents.push(node.getGiven().iterator());
+                    finished.put(parent, false);
+                } else if (!state) {
+                    // From the top of the path down to the parent each variable is a child of the one before, and the
+                    // top is a child of the parent
+                    List<String> cycle = new ArrayList<>();
+                    int line = 0;
+                    for (BayesianNode node : path) {
+                        cycle.add(node.getName());
+                        line = Math.max(line, definitionLines.get(node.getName()));
+                        if (node.getName().equals(parent)) {
+                            break;
+                        }
                     }
-                    givenOutcomes.add(outcomeMap.get(name)); // Add outcomes for the current node
-
-                    List<List<String>> combinations = generateOrderedCombinations(givenOutcomes);
+                    cycle.add(cycle.get(0));
+                    throw new ParseException(file, line, "Directed cycle " + String.join(" -> ", cycle), null);
+                }
+            }
+        }
+    }
 
-                    int index = 0;
-                    for (List<String> combination : combinations) {
-                        cpt.put(combination, Double.parseDouble(tableValues[index++]));
+    // Parse the whitespace-separated numbers of a TABLE element, which may arrive in several text events
+    private void readTable() throws XMLStreamException {
+        tableLength = 0;
+        tokenLength = 0;
+        while (true) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.CHARACTERS || event == XMLStreamConstants.CDATA
+                    || event == XMLStreamConstants.SPACE) {
+                char[] chars = reader.getTextCharacters();
+                int end = reader.getTextStart() + reader.getTextLength();
+                for (int i = reader.getTextStart(); i < end; i++) {
+                    char c = chars[i];
+                    if (Character.isWhitespace(c)) {
+                        endToken();
+                    } else if (tokenLength == token.length) {
+                        throw error("Number too long in TABLE");
+                    } else {
+                        token[tokenLength++] = c;
                     }
-                    node.setCPT(cpt);
                 }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                endToken();
+                return;
+            } else if (event == XMLStreamConstants.START_ELEMENT) {
+                throw error("Unexpected element " + reader.getLocalName() + " inside TABLE");
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
-        return network;
     }
 
-    private static List<List<String>> generateOrderedCombinations(List<List<String>> givenOutcomes) {
-        List<List<String>> combinations = new ArrayList<>();
-        generateCombinationsHelper(combinations, givenOutcomes, new ArrayList<>(), 0);
-        return combinations;
+    private void endToken() {
+        if (tokenLength == 0) {
+            return;
+        }
+        if (tableLength == table.length) {
+            table = Arrays.copyOf(table, table.length * 2);
+        }
+        table[tableLength++] = parseNumber();
+        tokenLength = 0;
     }
 
-    private static void generateCombinationsHelper(List<List<String>> combinations, List<List<String>> givenOutcomes, List<String> current, int index) {
-        if (index == givenOutcomes.size()) {
-            combinations.add(new ArrayList<>(current));
-            return;
+    // Decimal numbers with at most 15 significant digits and a small exponent are exact as m / 10^k
+    // (both operands are exact doubles and the division rounds once); anything else goes to Double.parseDouble.
+    private double parseNumber() {
+        int i = 0;
+        boolean negative = false;
+        if (token[0] == '-' || token[0] == '+') {
+            negative = token[0] == '-';
+            i++;
         }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean seenDigit = false;
+        boolean seenPoint = false;
+        for (; i < tokenLength; i++) {
+            char c = token[i];
+            if (c >= '0' && c <= '9') {
+                seenDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    if (seenPoint) {
+                        exponent--;
+                    }
+                    continue;
+                }
+                if (++digits > 15) {
+                    return slowParse();
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (seenPoint) {
+                    exponent--;
+                }
+            } else if (c == '.' && !seenPoint) {
+                seenPoint = true;
+            } else if ((c == 'e' || c == 'E') && seenDigit) {
+                int j = i + 1;
+                boolean negativeExponent = j < tokenLength && token[j] == '-';
+                if (j < tokenLength && (token[j] == '-' || token[j] == '+')) {
+                    j++;
+                }
+                if (j == tokenLength || tokenLength - j > 4) {
+                    return slowParse();
+                }
+                int exp = 0;
+                for (; j < tokenLength; j++) {
+                    if (token[j] < '0' || token[j] > '9') {
+                        return slowParse();
+                    }
+                    exp = exp * 10 + (token[j] - '0');
+                }
+                exponent += negativeExponent ? -exp : exp;
+                break;
+            } else {
+                return slowParse();
+            }
+        }
+        if (!seenDigit) {
+            return slowParse();
+        }
+        double value;
+        if (mantissa == 0) {
+            value = 0.0;
+        } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+            value = mantissa * POWERS_OF_TEN[exponent];
+            if (exponent > 0 && value >= 9007199254740992.0) {
+                return slowParse(); // The product may have rounded
+            }
+        } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+            value = mantissa / POWERS_OF_TEN[-exponent];
+        } else {
+            return slowParse();
+        }
+        return negative ? -value : value;
+    }
 
-        for (String outcome : givenOutcomes.get(index)) {
-            current.add(outcome);
-            generateCombinationsHelper(combinations, givenOutcomes, current, index + 1);
-            current.remove(current.size() - 1);
+    private double slowParse() {
+        String number = new String(token, 0, tokenLength);
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Invalid number '" + number + "' in TABLE");
         }
     }
+
+    private int line() {
+        return reader.getLocation().getLineNumber();
+    }
+
+    private ParseException error(String message) {
+        return new ParseException(file, line(), message, null);
+    }
 }